@@ -2,10 +2,10 @@ package fun.sakuraspark.sakuraupdater;
 
 import static com.mojang.brigadier.arguments.StringArgumentType.string;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -21,10 +21,17 @@ import java.util.List;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
+import fun.sakuraspark.sakuraupdater.utils.AsyncLogOutput;
+
 public final class SakuraUpdaterBootstrap {
     private static final String LOG_FILE_PREFIX = "logs/sakuraupdater-";
     private static final String LOG_FILE_SUFFIX = ".log";
     private static final DateTimeFormatter LOG_FILE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    // 日志缓冲区可以容纳的行数
+    private static final String LOG_BUFFER_PROPERTY = "sakuraupdater.log.buffer";
+    private static final int DEFAULT_LOG_BUFFER = 8192;
+    // 日志缓冲区满时的策略，block 等待写出，drop 丢弃新日志
+    private static final String LOG_POLICY_PROPERTY = "sakuraupdater.log.policy";
 
     private static final String EMBEDDED_JAR_PREFIX = "META-INF/jarjar/";
     private static final String MAIN_CLASS = "fun.sakuraspark.sakuraupdater.SakuraUpdaterServerOnly";
@@ -57,56 +64,26 @@ public final class SakuraUpdaterBootstrap {
         return LOG_FILE_PREFIX + timestamp + LOG_FILE_SUFFIX;
     }
 
-    private static void setupTeeOutput(String logPath) throws IOException {
-        Path path = Path.of(logPath);
-        Path parent = path.getParent();
-        if (parent != null) {
-            Files.createDirectories(parent);
-        }
-
-        PrintStream consoleOut = System.out;
-        PrintStream consoleErr = System.err;
-        PrintStream fileOut = new PrintStream(Files.newOutputStream(path), true, "UTF-8");
-
-        System.setOut(new PrintStream(new TeeOutputStream(consoleOut, fileOut), true, "UTF-8"));
-        System.setErr(new PrintStream(new TeeOutputStream(consoleErr, fileOut), true, "UTF-8"));
-    }
-
-    private static final class TeeOutputStream extends OutputStream {
-        private final PrintStream console;
-        private final PrintStream file;
-
-        private TeeOutputStream(PrintStream console, PrintStream file) {
-            this.console = console;
-            this.file = file;
-        }
-
-        @Override
-        public void write(int b) throws IOException {
-            console.write(b);
-            file.write(b);
-        }
-
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            console.write(b, off, len);
-            file.write(b, off, len);
-        }
-
-        @Override
-        public void flush() throws IOException {
-            console.flush();
-            file.flush();
-        }
+    private static void setupAsyncOutput(String logPath) throws IOException {
+        // 日志框架加载之前还没有读取配置文件，因此通过系统属性配置
+        int capacity = Integer.getInteger(LOG_BUFFER_PROPERTY, DEFAULT_LOG_BUFFER);
+        AsyncLogOutput.Policy policy = "drop".equalsIgnoreCase(System.getProperty(LOG_POLICY_PROPERTY))
+                ? AsyncLogOutput.Policy.DROP
+                : AsyncLogOutput.Policy.BLOCK;
+        AsyncLogOutput output = new AsyncLogOutput(Path.of(logPath), capacity, policy);
+
+        System.setOut(output.stream(new FileOutputStream(FileDescriptor.out)));
+        System.setErr(output.stream(new FileOutputStream(FileDescriptor.err)));
+        Runtime.getRuntime().addShutdownHook(new Thread(output::close, "Log-Flush"));
     }
 
     public static void main(String[] args) throws Exception {
         // 设置主线程名称
         Thread.currentThread().setName("Server thread");
 
-        // 同时输出到文件（stdout + file）
+        // 同时输出到文件（stdout + file），由后台线程批量写出
         try {
-            setupTeeOutput(buildLogFileName());
+            setupAsyncOutput(buildLogFileName());
         } catch (IOException ignored) {
             // Fallback to stdout only if file setup fails.
         }
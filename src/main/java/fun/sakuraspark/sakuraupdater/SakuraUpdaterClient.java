@@ -8,12 +8,18 @@ import com.mojang.datafixers.util.Pair;
 import com.mojang.logging.LogUtils;
 
 import fun.sakuraspark.sakuraupdater.config.ClientConfig;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.ChangeData;
 import fun.sakuraspark.sakuraupdater.config.DataConfig.Data;
 import fun.sakuraspark.sakuraupdater.config.DataConfig.FileData;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.PathChangeData;
 import fun.sakuraspark.sakuraupdater.config.DataConfig.PathData;
 import fun.sakuraspark.sakuraupdater.gui.TestScreen;
 import fun.sakuraspark.sakuraupdater.gui.UpdateCheckScreen;
 import fun.sakuraspark.sakuraupdater.network.FileClient;
+import fun.sakuraspark.sakuraupdater.network.FileServer;
+import fun.sakuraspark.sakuraupdater.network.Handshake;
+import fun.sakuraspark.sakuraupdater.network.LanPeer;
+import fun.sakuraspark.sakuraupdater.utils.Delta;
 import fun.sakuraspark.sakuraupdater.utils.FileUtils;
 import fun.sakuraspark.sakuraupdater.utils.MD5;
 import net.minecraft.commands.CommandSourceStack;
@@ -27,16 +33,32 @@ import static fun.sakuraspark.sakuraupdater.utils.CommandUtils.sendSuccessMessag
 import static net.minecraft.commands.Commands.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
 public class SakuraUpdaterClient {
 
     private static final Logger LOGGER = LogUtils.getLogger();
     private static SakuraUpdaterClient INSTANCE;
+    // 最新清单的本地缓存
+    private static final String MANIFEST_CACHE = "config/sakuraupdater-manifest.json";
+    // 不超过该大小的文件使用批量下载
+    private static final long BATCH_FILE_SIZE = 256 * 1024;
+    // 每个文件最多尝试的局域网节点数
+    private static final int MAX_PEER_ATTEMPTS = 3;
 
     private FileClient file_client;
+    private Handshake handshake; // 连接时的握手结果，服务端不支持握手时为 null
+    private LanPeer lan_peer; // 局域网互助分发，未开启时为 null
     private Data last_update_data = null; // 上次更新的数据
     private Data current_update_data = null; // 当前更新的数据，只有存在push时才会有
 
@@ -70,13 +92,26 @@ public class SakuraUpdaterClient {
     }
 
     public int updateCheck() {
-        if (getLastUpdateData() == null) {
+        // 先只获取版本号，清单未变化时不需要下载和解析清单；连接时已经握手的直接使用握手得到的版本号
+        String latestVersion;
+        if (last_update_data != null) {
+            latestVersion = last_update_data.version;
+        } else if (handshake != null && handshake.latest != null) {
+            latestVersion = handshake.latest;
+        } else {
+            latestVersion = file_client.getLatestVersion();
+        }
+        if (latestVersion == null) {
+            LOGGER.error("Failed to fetch latest version from server.");
             return -1;
         }
-        if (last_update_data.version.equals(ClientConfig.getNowVersion())) {
+        if (latestVersion.equals(ClientConfig.getNowVersion())) {
             LOGGER.info("Client is up to date.");
             return 0;
         }
+        if (getLastUpdateData() == null) {
+            return -1;
+        }
         LOGGER.warn("Client is outdated. Latest version: {}", last_update_data.version);
         return 1;
     }
@@ -89,70 +124,57 @@ public class SakuraUpdaterClient {
         if (getLastUpdateData() == null) {
             return false;
         }
-        Gson gson = new Gson();
+        // push 路径中需要删除的文件，优先使用服务端给出的版本变化
+        Set<String> pushRemoved = getPushRemoved();
+        if (pushRemoved == null) {
+            return false;
+        }
+        pushRemoved.forEach(path -> {
+            LOGGER.warn("File {} will be deleted in push mode.", path);
+            integrityCheckResult.getFirst().add(new File(path));
+        });
         for (PathData pathData : last_update_data.paths) {
             // 格式错误
             if (!pathData.model.equals("mirror") && !pathData.model.equals("push")) {
                 LOGGER.warn("Unknown model: {}, skipping integrity check for this path.", pathData.model);
                 continue;
             }
+            // 每个路径只扫描一次目录，之后按路径查找
+            Map<String, FileData> expected = new HashMap<>();
+            for (FileData fileData : pathData.files) {
+                expected.put(fileData.targetPath, fileData);
+            }
+            Map<String, File> local = new HashMap<>();
+            for (File file : FileUtils.getAllFiles(new File(pathData.targetPath))) {
+                local.put(file.toString().replace(File.separator, "/"), file);
+            }
             // mirror需要删除
             if (pathData.model.equals("mirror")) {
-                FileUtils.getAllFiles(new File(pathData.targetPath)).forEach(file -> {
-                    FileData fileData = null;
-                    for (FileData fd : pathData.files) {
-                        if (fd.targetPath.equals(file.toString().replace(File.separator, "/"))) { // 判断是否存
-                            fileData = fd;
-                            break;
+                local.forEach((filePath, file) -> {
+                    // 未下载完的 .part 文件及其 ETag 记录，对应文件仍在列表中时保留用于断点续传
+                    String partTarget = FileClient.partTarget(filePath);
+                    if (partTarget != null) {
+                        if (!expected.containsKey(partTarget)) {
+                            integrityCheckResult.getFirst().add(file);
                         }
+                        return;
                     }
-                    if (fileData == null) {
+                    if (!expected.containsKey(filePath)) {
                         LOGGER.warn("File {} not in list\nwill be deleted in mirror mode.", file);
                         integrityCheckResult.getFirst().add(file);
                     }
-                    if (fileData != null && !fileData.md5.equals(MD5.calculateMD5(file))) {
-                        LOGGER.warn("File {} md5 not match\nwill be removed in mirror mode.", file);
-                        integrityCheckResult.getFirst().add(file); // 文件损坏也删除
-                    }
-
+                    // md5 不一致的文件不删除，下载时会被替换，旧内容可以作为差分补丁的基础
                 });
             }
-            // push需要删除
-            if (pathData.model.equals("push")) {
-                if (current_update_data == null) {
-                    current_update_data = file_client.getUpdateList(ClientConfig.getNowVersion());
-                    if (current_update_data == null) {
-                        LOGGER.error("Failed to fetch current update list from server.");
-                        return false;
-                    }
-                    LOGGER.info("Current update list fetched successfully: {}", gson.toJson(current_update_data));
-                }
-                if (current_update_data.version != null
-                        && !current_update_data.version.equals(last_update_data.version)) { // 版本不一致时执行，避免""会自动返回最新版本问题
-                    current_update_data.paths.forEach(CurrentPathData -> {
-                        if (CurrentPathData.targetPath.equals(pathData.targetPath)) {
-                            CurrentPathData.files.forEach(file -> {
-                                if (!pathData.files.stream()
-                                        .anyMatch(fileData -> file.targetPath.equals(fileData.targetPath)
-                                                && new File(file.targetPath).exists() && fileData.md5.equals(MD5.calculateMD5(new File(file.targetPath))))) { // 判断是否存在和对比md5
-                                    LOGGER.warn("File {} will be deleted in push mode.", file.targetPath);
-                                    integrityCheckResult.getFirst().add(new File(file.targetPath));
-                                }
-                            });
-                        }
-                    });
-                }
-            }
             // 需要下载
-            pathData.files.forEach(fileData -> {
-                if (!FileUtils.getAllFiles(new File(pathData.targetPath)).stream()
-                        .anyMatch(file -> file.toString().replace(File.separator, "/").equals(fileData.targetPath)
-                                && fileData.md5.equals(MD5.calculateMD5(file)))) { // 判断是否存在和对比md5
+            for (FileData fileData : pathData.files) {
+                File file = local.get(fileData.targetPath);
+                if (file == null || !fileData.md5.equals(MD5.calculateMD5(file))) { // 判断是否存在和对比md5
                     LOGGER.warn("File {} will be downloaded to {}", fileData.sourcePath + ":" + fileData.md5,
                             fileData.targetPath);
                     integrityCheckResult.getSecond().add(fileData);
                 }
-            });
+            }
         }
 
         download_failures = -1; // 重置失败次数
@@ -160,6 +182,7 @@ public class SakuraUpdaterClient {
             LOGGER.info("No files to remove or download.");
             update_progress = new Pair<>(0, 0);
             ClientConfig.setNowVersion(last_update_data.version); // 不需要更新文件但是还是需要更新本地版本号
+            shareWithPeers();
             return false;
         }
 
@@ -168,6 +191,79 @@ public class SakuraUpdaterClient {
         return true;
     }
 
+    /**
+     * 获取从当前版本更新到最新版本时 push 路径中需要删除的文件
+     * <p>
+     * 使用握手附带的或 /changes 返回的版本变化，服务端都不支持时请求当前版本的清单并比较。
+     * 新版本中仍然存在的文件不删除，下载时会被替换，旧内容可以作为差分补丁的基础。
+     * </p>
+     * @return 获取失败时返回 null
+     */
+    @Nullable
+    private Set<String> getPushRemoved() {
+        Set<String> removed = new LinkedHashSet<>();
+        String nowVersion = ClientConfig.getNowVersion();
+        if (nowVersion == null || nowVersion.isEmpty() || nowVersion.equals(last_update_data.version)) {
+            return removed;
+        }
+        Map<String, Set<String>> pushPaths = new HashMap<>(); // 目标路径 -> 新版本中的文件
+        for (PathData pathData : last_update_data.paths) {
+            if (pathData.model.equals("push")) {
+                Set<String> files = pushPaths.computeIfAbsent(pathData.targetPath, k -> new HashSet<>());
+                pathData.files.forEach(fileData -> files.add(fileData.targetPath));
+            }
+        }
+        if (pushPaths.isEmpty()) {
+            return removed;
+        }
+
+        ChangeData changes = handshake != null ? handshake.changes : null;
+        if (changes == null || !nowVersion.equals(changes.from) || !last_update_data.version.equals(changes.to)) {
+            changes = file_client.hasCapability(FileServer.CAPABILITY_CHANGES)
+                    ? file_client.getChanges(nowVersion, last_update_data.version)
+                    : null;
+        }
+        if (changes != null && changes.paths != null) {
+            for (PathChangeData pathChanges : changes.paths) {
+                if (!pushPaths.containsKey(pathChanges.targetPath)) {
+                    continue;
+                }
+                if (pathChanges.removed != null) {
+                    pathChanges.removed.forEach(fileData -> removed.add(fileData.targetPath));
+                }
+                if (pathChanges.renamed != null) {
+                    pathChanges.renamed.forEach(rename -> removed.add(rename.from.targetPath));
+                }
+            }
+            return removed;
+        }
+
+        if (current_update_data == null) {
+            current_update_data = file_client.getUpdateList(nowVersion);
+            if (current_update_data == null) {
+                LOGGER.error("Failed to fetch current update list from server.");
+                return null;
+            }
+            LOGGER.info("Current update list fetched successfully: {}", new Gson().toJson(current_update_data));
+        }
+        if (current_update_data.version == null
+                || current_update_data.version.equals(last_update_data.version)) { // 版本一致时跳过，避免""会自动返回最新版本问题
+            return removed;
+        }
+        for (PathData currentPathData : current_update_data.paths) {
+            Set<String> kept = pushPaths.get(currentPathData.targetPath);
+            if (kept == null) {
+                continue;
+            }
+            currentPathData.files.forEach(fileData -> {
+                if (!kept.contains(fileData.targetPath)) {
+                    removed.add(fileData.targetPath);
+                }
+            });
+        }
+        return removed;
+    }
+
     public void downloadUpdate() {
         if (download_failures == -1) {
             download_failures = 0;
@@ -183,9 +279,37 @@ public class SakuraUpdaterClient {
             }
         });
 
-        // 下载需要的文件
-        integrityCheckResult.getSecond().forEach(fileData -> {
-            if (file_client.downloadFile(fileData.sourcePath, fileData.targetPath)) {
+        // 局域网中有已完成该版本的节点时先从节点下载，剩下的再从服务器下载
+        List<FileData> remaining = downloadFromPeers(integrityCheckResult.getSecond());
+
+        // 小文件通过批量接口一次下载，失败的再逐个下载
+        List<FileData> singleFiles = new ArrayList<>();
+        List<FileData> batchFiles = new ArrayList<>();
+        boolean batch = file_client.hasCapability(FileServer.CAPABILITY_BATCH);
+        for (FileData fileData : remaining) {
+            if (batch && fileData.size > 0 && fileData.size <= BATCH_FILE_SIZE) {
+                batchFiles.add(fileData);
+            } else {
+                singleFiles.add(fileData);
+            }
+        }
+        for (int i = 0; i < batchFiles.size(); i += FileServer.MAX_BATCH_FILES) {
+            List<FileData> group = batchFiles.subList(i, Math.min(i + FileServer.MAX_BATCH_FILES, batchFiles.size()));
+            singleFiles.addAll(file_client.downloadBatch(group, fileData -> {
+                LOGGER.info("Downloaded file: {}", fileData.sourcePath);
+                update_progress = new Pair<>(update_progress.getFirst() + 1, update_progress.getSecond());
+            }));
+        }
+
+        // 下载需要的文件，本地有旧版本时先尝试差分补丁，没有补丁的大文件只下载变化的块
+        boolean patch = file_client.hasCapability(FileServer.CAPABILITY_PATCH);
+        boolean chunk = file_client.hasCapability(FileServer.CAPABILITY_CHUNK);
+        singleFiles.forEach(fileData -> {
+            if (patch && downloadPatch(fileData)) {
+                LOGGER.info("Patched file: {}", fileData.sourcePath);
+            } else if (chunk && downloadChunked(fileData)) {
+                LOGGER.info("Downloaded changed chunks of file: {}", fileData.sourcePath);
+            } else if (file_client.downloadFile(fileData.sourcePath, fileData.targetPath, fileData.md5)) {
                 LOGGER.info("Downloaded file: {}", fileData.sourcePath);
             } else {
                 download_failures++;
@@ -196,9 +320,112 @@ public class SakuraUpdaterClient {
         if (download_failures == 0) {
             LOGGER.info("All files downloaded successfully.");
             ClientConfig.setNowVersion(last_update_data.version);
+            shareWithPeers();
+        }
+    }
+
+    /**
+     * 从局域网节点下载文件，每个文件最多尝试几个节点，内容按清单中的 MD5 校验
+     * @return 未能从节点下载的文件
+     */
+    private List<FileData> downloadFromPeers(List<FileData> files) {
+        if (lan_peer == null || files.isEmpty()) {
+            return files;
+        }
+        List<LanPeer.Peer> peers = lan_peer.getPeers(last_update_data.version);
+        if (peers.isEmpty()) {
+            return files;
+        }
+        LOGGER.info("Downloading from {} LAN peers", peers.size());
+        Map<LanPeer.Peer, FileClient> clients = new HashMap<>();
+        List<FileData> remaining = new ArrayList<>();
+        int next = 0;
+        for (FileData fileData : files) {
+            boolean downloaded = false;
+            for (int attempt = 0; attempt < MAX_PEER_ATTEMPTS && !downloaded && !peers.isEmpty(); attempt++) {
+                // 轮流使用各个节点，分散负载
+                LanPeer.Peer peer = peers.get(next++ % peers.size());
+                FileClient client = clients.get(peer);
+                if (client == null) {
+                    client = new FileClient(peer.host, peer.port);
+                    if (!client.heartbeat()) {
+                        LOGGER.warn("LAN peer {} is not reachable", peer);
+                        lan_peer.removePeer(peer);
+                        peers.remove(peer);
+                        continue;
+                    }
+                    clients.put(peer, client);
+                }
+                downloaded = client.tryDownloadFile(fileData.sourcePath, fileData.targetPath, fileData.md5);
+            }
+            if (downloaded) {
+                LOGGER.info("Downloaded file from LAN peer: {}", fileData.sourcePath);
+                update_progress = new Pair<>(update_progress.getFirst() + 1, update_progress.getSecond());
+            } else {
+                remaining.add(fileData);
+            }
+        }
+        LOGGER.info("{} of {} files downloaded from LAN peers", files.size() - remaining.size(), files.size());
+        return remaining;
+    }
+
+    /**
+     * 本地文件已是最新版本，开始向局域网中的其他客户端提供
+     */
+    private void shareWithPeers() {
+        if (lan_peer != null && last_update_data != null) {
+            lan_peer.share(last_update_data);
         }
     }
 
+    /**
+     * 按配置启动局域网互助分发
+     */
+    private void startLanPeer() {
+        if (!ClientConfig.peerMode || lan_peer != null) {
+            return;
+        }
+        try {
+            LanPeer peer = new LanPeer(ClientConfig.peerPort);
+            peer.start();
+            lan_peer = peer;
+        } catch (IOException e) {
+            LOGGER.error("Failed to start LAN peer, downloading from server only", e);
+        }
+    }
+
+    /**
+     * 用差分补丁把本地旧文件更新到新版本
+     * @return 是否成功，本地没有可用的旧文件或服务端没有对应补丁时返回 false
+     */
+    private boolean downloadPatch(FileData fileData) {
+        File local = new File(fileData.targetPath);
+        // 已有未完成的完整下载时继续断点续传
+        if (!local.isFile() || local.length() < Delta.MIN_SIZE
+                || new File(fileData.targetPath + FileClient.PART_SUFFIX).exists()) {
+            return false;
+        }
+        String localMd5 = MD5.calculateMD5(local);
+        if (localMd5.equals(fileData.md5)) {
+            return true;
+        }
+        return file_client.downloadPatch(localMd5, fileData.md5, fileData.targetPath);
+    }
+
+    /**
+     * 按块更新大文件，复用本地旧文件中内容相同的块
+     * @return 是否成功，文件没有切块或本地没有旧文件时返回 false
+     */
+    private boolean downloadChunked(FileData fileData) {
+        File local = new File(fileData.targetPath);
+        // 本地没有旧文件时逐块请求没有好处，直接完整下载
+        if (fileData.chunks == null || fileData.chunks.isEmpty() || !local.isFile()
+                || new File(fileData.targetPath + FileClient.PART_SUFFIX).exists()) {
+            return false;
+        }
+        return file_client.downloadChunked(fileData, fileData.targetPath);
+    }
+
     public Pair<Integer, Integer> getUpdateProgress() {
         return update_progress;
     }
@@ -215,8 +442,16 @@ public class SakuraUpdaterClient {
             }
             return;
         }
-        file_client = new FileClient(ClientConfig.host, ClientConfig.port);
+        file_client = new FileClient(ClientConfig.host, ClientConfig.port, new File(MANIFEST_CACHE));
+        startLanPeer();
 
+        // 一次握手完成心跳和版本检查，旧版本服务端不支持时退回心跳
+        handshake = file_client.handshake(ClientConfig.getNowVersion());
+        if (handshake != null) {
+            LOGGER.info("Connected to SakuraUpdater Server at {}:{}, latest version: {}", ClientConfig.host,
+                    ClientConfig.port, handshake.latest);
+            return;
+        }
         if (file_client.heartbeat()) {
             LOGGER.info("Connected to SakuraUpdater Server at {}:{}", ClientConfig.host, ClientConfig.port);
             return;
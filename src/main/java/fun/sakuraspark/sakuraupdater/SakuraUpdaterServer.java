@@ -195,7 +195,7 @@ public class SakuraUpdaterServer {
                                         return 0;
                                     }
                                     CommandResult result = ServerCommandsHelper.commitData(version, description,
-                                            pathData);
+                                            pathData, file_server);
                                     if (!result.success) {
                                         sendFailureMessage(context.getSource(), result.message);
                                         return 0;
@@ -16,6 +16,7 @@ import org.slf4j.LoggerFactory;
 import fun.sakuraspark.sakuraupdater.config.DataConfig;
 import fun.sakuraspark.sakuraupdater.config.StandaloneServerConfig;
 import fun.sakuraspark.sakuraupdater.network.FileServer;
+import fun.sakuraspark.sakuraupdater.network.Relay;
 import fun.sakuraspark.sakuraupdater.utils.ServerCommandsHelper;
 
 /**
@@ -171,10 +172,19 @@ public class SakuraUpdaterServerOnly {
             return 0;
         }
 
-        // 3. 启动文件服务器
+        // 3. 启动文件服务器，配置了上游时以中继模式运行
         int port = StandaloneServerConfig.getPort();
         LOGGER.info("Starting file server on port {}...", port);
-        FileServer fileServer = new FileServer(port);
+        Relay relay = null;
+        if (StandaloneServerConfig.isRelay()) {
+            if (!StandaloneServerConfig.getSyncDirs().isEmpty()) {
+                LOGGER.warn("SYNC_DIR is ignored in relay mode");
+            }
+            relay = new Relay(StandaloneServerConfig.getRelayHost(), StandaloneServerConfig.getRelayPort(),
+                    StandaloneServerConfig.isRelayPrefetch(), StandaloneServerConfig.getRelayPollInterval());
+        }
+        boolean relayMode = relay != null;
+        FileServer fileServer = new FileServer(port, relay);
         fileServer.start();
 
         // 4. 设置命令分发器
@@ -245,6 +255,10 @@ public class SakuraUpdaterServerOnly {
                             }
                         })))
                 .then(new CommandDispatcher("commit").execute(cmd -> {
+                    if (relayMode) {
+                        LOGGER.warn("Commit is not available in relay mode, versions are mirrored from the upstream server");
+                        return;
+                    }
                     // description 是支持空格的，所以只分割两部分，第一部分是版本号，第二部分是描述
                     String[] parts = cmd.split(" ", 2);
                     if (parts.length < 2) {
@@ -255,7 +269,7 @@ public class SakuraUpdaterServerOnly {
                     String version = parts[0];
                     String description = parts[1];
                     ServerCommandsHelper.CommandResult result = ServerCommandsHelper.commitData(version,
-                            description);
+                            description, fileServer);
                     if (result.success) {
                         LOGGER.info(result.message);
                     } else {
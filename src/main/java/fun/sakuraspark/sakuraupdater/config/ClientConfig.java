@@ -30,6 +30,15 @@ public class ClientConfig {
 			.comment("The port of the file server, default is 25564.")
 			.defineInRange("port", 25564, 1, 65535);
 
+	private static final ForgeConfigSpec.BooleanValue PEER_MODE = BUILDER
+			.comment("Share downloaded files with other clients on the LAN and download from them first, default is false.",
+					"Useful when many clients behind one uplink update at the same time.")
+			.define("peer_mode", false);
+
+	private static final ForgeConfigSpec.IntValue PEER_PORT = BUILDER
+			.comment("The port used to serve files to LAN peers, 0 means a random port, default is 0.")
+			.defineInRange("peer_port", 0, 0, 65535);
+
 	private static final ForgeConfigSpec.ConfigValue<String> now_version = BUILDER
 			.comment("The current version of the client, used for update check. Don't change this unless you know what you're doing.")
 			.define("now_version", "");
@@ -38,11 +47,15 @@ public class ClientConfig {
 
 	public static int port;
 	public static String host;
+	public static boolean peerMode;
+	public static int peerPort;
 
 	@SubscribeEvent
 	public static void onLoad(final ModConfigEvent event) {
 		port = PORT.get();
 		host = HOST.get();
+		peerMode = PEER_MODE.get();
+		peerPort = PEER_PORT.get();
 		while (SakuraUpdaterClient.getInstance() == null);
 		SakuraUpdaterClient.getInstance().connectToServer();
 	}
@@ -1,11 +1,16 @@
 package fun.sakuraspark.sakuraupdater.config;
 
+import java.lang.reflect.Type;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.Nullable;
 
@@ -14,8 +19,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
 import com.mojang.logging.LogUtils;
 
+import fun.sakuraspark.sakuraupdater.utils.Metrics;
+
 public class DataConfig {
     public static class Data {
         public String version;
@@ -32,47 +41,216 @@ public class DataConfig {
         public String sourcePath; // 相对路径
         public String targetPath; // 目标路径
         public String md5; // 文件MD5
+        public long size; // 文件大小，旧版本数据中为 0
+        public List<ChunkData> chunks; // 大文件按内容切分的块，小文件为 null
+    }
+    public static class ChunkData {
+        public long offset; // 块在文件中的起始位置
+        public int size; // 块大小
+        public String md5; // 块内容的MD5
+    }
+    public static class ChangeData {
+        public String from; // 起始版本
+        public String to; // 目标版本
+        public List<PathChangeData> paths; // 有变化的路径
+    }
+    public static class PathChangeData {
+        public String model;
+        public String targetPath; // 目标路径
+        public List<FileData> added; // 新增的文件
+        public List<FileData> removed; // 删除的文件，为旧版本中的信息
+        public List<FileChangeData> changed; // 路径不变、内容改变的文件
+        public List<FileChangeData> renamed; // 内容不变、路径改变的文件
+    }
+    public static class FileChangeData {
+        public FileData from; // 旧版本中的文件
+        public FileData to; // 新版本中的文件
     }
 
-    private static Connection connection = null;
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataConfig.class);
+    private static final Gson GSON = new Gson();
+    private static final Type PATH_LIST = new TypeToken<List<PathData>>(){}.getType();
+    private static final Type CHUNK_LIST = new TypeToken<List<ChunkData>>(){}.getType();
+    private static final Type CHANGE_LIST = new TypeToken<List<PathChangeData>>(){}.getType();
+    // 每批插入的文件行数
+    private static final int INSERT_BATCH = 500;
+    // 只读连接数，读取可以在这些连接上并行执行
+    private static final int READ_CONNECTIONS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    // 连接池，未连接时为 null
+    private static volatile SqlitePool pool = null;
+
+    // 数据变更监听器，版本被提交、编辑、删除或清空后调用
+    private static final List<Runnable> CHANGE_LISTENERS = new CopyOnWriteArrayList<>();
+
+    /**
+     * 注册数据变更监听器
+     */
+    public static void addChangeListener(Runnable listener) {
+        CHANGE_LISTENERS.add(listener);
+    }
+
+    /**
+     * 移除数据变更监听器
+     */
+    public static void removeChangeListener(Runnable listener) {
+        CHANGE_LISTENERS.remove(listener);
+    }
+
+    /**
+     * 通知所有监听器数据已变更
+     */
+    private static void notifyChanged() {
+        for (Runnable listener : CHANGE_LISTENERS) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                LOGGER.error("Data change listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * 记录数据库操作耗时
+     */
+    private static void recordQuery(String operation, long startNanos) {
+        Metrics.histogram("sakuraupdater_db_query_duration_seconds", "Time spent in DataConfig database operations.",
+                "operation", operation).observeSince(startNanos);
+    }
 
     /**
      * 连接到SQLite数据库
      */
     public static boolean connectToDatabase(String dburl){
+        closeDatabase();
         try {
             // 显式加载驱动类，确保 JDBC 驱动已注册
             // 这里的 String 会被 ShadowJar 插件忽略，导致重定位后无法找到类
             // 改用 .class 引用，ShadowJar 会自动处理重定位后的包名
             Class.forName("org.sqlite.JDBC");
 
-            connection = DriverManager.getConnection("jdbc:sqlite:" + dburl);
-            try (Statement stmt = connection.createStatement()) {
-                // 当表不存在时创建表
-                String sql = "CREATE TABLE IF NOT EXISTS updates (" +
-                             "version TEXT PRIMARY KEY, " +
+            SqlitePool opened = new SqlitePool(dburl, READ_CONNECTIONS);
+            try (SqlitePool.Handle db = opened.write(); Statement stmt = db.connection.createStatement()) {
+                // 版本、路径和文件分表保存，读写时逐行处理，也可以直接按文件或 MD5 跨版本查询
+                stmt.execute("CREATE TABLE IF NOT EXISTS versions (" +
+                             "id INTEGER PRIMARY KEY, " +
+                             "version TEXT NOT NULL UNIQUE, " +
                              "time TEXT, " +
-                             "description TEXT, " +
-                             "data TEXT)"; // 使用 json 存储复杂对象
-                stmt.execute(sql);
-                stmt.close();
+                             "description TEXT)");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_versions_time ON versions (time)");
+                stmt.execute("CREATE TABLE IF NOT EXISTS paths (" +
+                             "id INTEGER PRIMARY KEY, " +
+                             "version_id INTEGER NOT NULL, " +
+                             "model TEXT, " +
+                             "target_path TEXT)");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_paths_version ON paths (version_id)");
+                stmt.execute("CREATE TABLE IF NOT EXISTS files (" +
+                             "id INTEGER PRIMARY KEY, " +
+                             "version_id INTEGER NOT NULL, " +
+                             "path_id INTEGER NOT NULL, " +
+                             "source_path TEXT, " +
+                             "target_path TEXT, " +
+                             "md5 TEXT, " +
+                             "size INTEGER, " +
+                             "chunks TEXT)"); // 大文件的分块列表，使用 json 存储
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_files_version_target ON files (version_id, target_path)");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_files_md5 ON files (md5)");
+                // 相邻版本之间的变化，提交时计算，多个版本的跳跃由相邻的变化组合得到
+                stmt.execute("CREATE TABLE IF NOT EXISTS changes (" +
+                             "from_version TEXT, " +
+                             "to_version TEXT, " +
+                             "data TEXT, " +
+                             "PRIMARY KEY (from_version, to_version))");
+                migrateLegacyData(db);
+            } catch (SQLException e) {
+                opened.close();
+                throw e;
             }
+            pool = opened;
         } catch (Exception e) {
+            LOGGER.error("Failed to open database {}", dburl, e);
             return false;
         }
         return true;
     }
 
+    /**
+     * 把旧版本 updates 表中按版本保存的 JSON 迁移到分表结构，完成后旧表改名为 updates_migrated 保留
+     */
+    private static void migrateLegacyData(SqlitePool.Handle db) throws SQLException {
+        try (ResultSet rs = db.prepare(
+                "SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'updates'").executeQuery()) {
+            if (!rs.next()) {
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        int migrated = inTransaction(db, () -> {
+            int count = 0;
+            PreparedStatement insert = db.prepareWithKeys(
+                    "INSERT OR IGNORE INTO versions (version, time, description) VALUES (?, ?, ?)");
+            try (Statement stmt = db.connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT version, time, description, data FROM updates ORDER BY time")) {
+                while (rs.next()) {
+                    String version = rs.getString("version");
+                    List<PathData> paths;
+                    try {
+                        paths = GSON.fromJson(rs.getString("data"), PATH_LIST);
+                    } catch (JsonParseException e) {
+                        LOGGER.warn("Skipping version {} with unreadable data, it is kept in updates_migrated", version, e);
+                        continue;
+                    }
+                    insert.setString(1, version);
+                    insert.setString(2, rs.getString("time"));
+                    insert.setString(3, rs.getString("description"));
+                    if (insert.executeUpdate() == 0) {
+                        continue; // 分表中已有该版本
+                    }
+                    insertPaths(db, generatedKey(insert), paths);
+                    count++;
+                }
+            }
+            try (Statement stmt = db.connection.createStatement()) {
+                stmt.execute("DROP TABLE IF EXISTS updates_migrated");
+                stmt.execute("ALTER TABLE updates RENAME TO updates_migrated");
+            }
+            return count;
+        });
+        LOGGER.info("Migrated {} versions from the legacy updates table in {} ms", migrated,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
     /**
      * 关闭数据库连接
      */
     public static void closeDatabase() {
-        try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
-            }
-        } catch (Exception e) {
+        SqlitePool closing = pool;
+        pool = null;
+        if (closing != null) {
+            closing.close();
+        }
+    }
+
+    /**
+     * 借出只读连接，数据库未连接时抛出异常，由调用者按查询失败处理
+     */
+    private static SqlitePool.Handle read() throws SQLException {
+        SqlitePool current = pool;
+        if (current == null) {
+            throw new SQLException("Database is not connected");
+        }
+        return current.read();
+    }
+
+    /**
+     * 独占写连接
+     */
+    private static SqlitePool.Handle write() throws SQLException {
+        SqlitePool current = pool;
+        if (current == null) {
+            throw new SQLException("Database is not connected");
         }
+        return current.write();
     }
 
     /**
@@ -84,21 +262,26 @@ public class DataConfig {
      * @return 是否添加成功
      */
     public static boolean addData(String version, String time, String description, List<PathData> files) {
-        // 使用 PreparedStatement 防止注入和特殊字符错误，try-with-resources 会自动关闭它
-        String sql = "INSERT INTO updates (version, time, description, data) VALUES (?, ?, ?, ?)";
-        Gson gson = new Gson();
-        String dataJson = gson.toJson(files);
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            
-            pstmt.setString(1, version);
-            pstmt.setString(2, time);
-            pstmt.setString(3, description);
-            pstmt.setString(4, dataJson);
-            pstmt.executeUpdate();
+        long start = System.nanoTime();
+        // 使用 PreparedStatement 防止注入和特殊字符错误，语句由连接缓存，不需要关闭
+        String sql = "INSERT INTO versions (version, time, description) VALUES (?, ?, ?)";
+        try (SqlitePool.Handle db = write()) {
+            inTransaction(db, () -> {
+                PreparedStatement pstmt = db.prepareWithKeys(sql);
+                pstmt.setString(1, version);
+                pstmt.setString(2, time);
+                pstmt.setString(3, description);
+                pstmt.executeUpdate(); // 版本已存在时违反唯一约束，整个事务回滚
+                insertPaths(db, generatedKey(pstmt), files);
+                return null;
+            });
         } catch (Exception e) {
             return false;
+        } finally {
+            recordQuery("addData", start);
         }
-        return true; // 如果转换成功，返回true/*  */
+        notifyChanged();
+        return true;
     }
 
     /**
@@ -110,22 +293,33 @@ public class DataConfig {
      * @return 是否编辑成功
      */
     public static boolean editData(String version, String time, String description, List<PathData> files) {
-        
-        Gson gson = new Gson();
-        String dataJson = gson.toJson(files);
-        String sql = "UPDATE updates SET time = ?, description = ?, data = ? WHERE version = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, time);
-            pstmt.setString(2, description);
-            pstmt.setString(3, dataJson);
-            pstmt.setString(4, version);
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows == 0) {
-                return false; // 如果没有找到对应的版本，返回false
+        long start = System.nanoTime();
+        String sql = "UPDATE versions SET time = ?, description = ? WHERE id = ?";
+        try (SqlitePool.Handle db = write()) {
+            boolean edited = inTransaction(db, () -> {
+                Long versionId = findVersionId(db, version);
+                if (versionId == null) {
+                    return false; // 如果没有找到对应的版本，返回false
+                }
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, time);
+                pstmt.setString(2, description);
+                pstmt.setLong(3, versionId);
+                pstmt.executeUpdate();
+                deleteContents(db, versionId);
+                insertPaths(db, versionId, files);
+                removeChanges(db, version);
+                return true;
+            });
+            if (!edited) {
+                return false;
             }
         } catch (Exception e) {
             return false;
+        } finally {
+            recordQuery("editData", start);
         }
+        notifyChanged();
         return true;
     }
 
@@ -134,12 +328,21 @@ public class DataConfig {
      * @return 是否清空成功
      */
     public static boolean clearData() {
-        try (Statement stmt = connection.createStatement()) {
-            String sql = "DELETE FROM updates";
-            stmt.executeUpdate(sql);
+        long start = System.nanoTime();
+        try (SqlitePool.Handle db = write()) {
+            inTransaction(db, () -> {
+                db.prepare("DELETE FROM files").executeUpdate();
+                db.prepare("DELETE FROM paths").executeUpdate();
+                db.prepare("DELETE FROM versions").executeUpdate();
+                db.prepare("DELETE FROM changes").executeUpdate();
+                return null;
+            });
         } catch (Exception e) {
             return false;
+        } finally {
+            recordQuery("clearData", start);
         }
+        notifyChanged();
         return true;
     }
 
@@ -148,35 +351,62 @@ public class DataConfig {
      * @param version 版本号
      */
     public static boolean removeData(String version) {
-        String sql = "DELETE FROM updates WHERE version = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, version);
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows == 0) {
+        long start = System.nanoTime();
+        try (SqlitePool.Handle db = write()) {
+            if (!deleteVersion(db, version)) {
                 return false;
-            } else {
-                return true;
             }
         } catch (Exception e) {
             return false;
+        } finally {
+            recordQuery("removeData", start);
         }
+        notifyChanged();
+        return true;
     }
 
     /**
      * 删除最新的一条数据记录
      */
     public static boolean removeLastData() {
-        String sql = "DELETE FROM updates WHERE version = (SELECT version FROM updates ORDER BY time DESC LIMIT 1)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows == 0) {
+        long start = System.nanoTime();
+        try (SqlitePool.Handle db = write()) {
+            String version;
+            try (ResultSet rs = db.prepare("SELECT version FROM versions ORDER BY time DESC LIMIT 1").executeQuery()) {
+                if (!rs.next()) {
+                    return false;
+                }
+                version = rs.getString("version");
+            }
+            if (!deleteVersion(db, version)) {
                 return false;
-            } else {
-                return true;
             }
         } catch (Exception e) {
             return false;
+        } finally {
+            recordQuery("removeLastData", start);
         }
+        notifyChanged();
+        return true;
+    }
+
+    /**
+     * 在一个事务中删除版本及其路径、文件和相关的变化
+     * @return 版本是否存在
+     */
+    private static boolean deleteVersion(SqlitePool.Handle db, String version) throws SQLException {
+        return inTransaction(db, () -> {
+            Long versionId = findVersionId(db, version);
+            if (versionId == null) {
+                return false;
+            }
+            deleteContents(db, versionId);
+            PreparedStatement pstmt = db.prepare("DELETE FROM versions WHERE id = ?");
+            pstmt.setLong(1, versionId);
+            pstmt.executeUpdate();
+            removeChanges(db, version);
+            return true;
+        });
     }
 
     /**
@@ -186,25 +416,21 @@ public class DataConfig {
      */
     @Nullable
     public static Data getDataByVersion(String version) {
-        String sql = "SELECT version, time, description, data FROM updates WHERE version = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, version);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    Data data = new Data();
-                    data.version = rs.getString("version");
-                    data.time = rs.getString("time");
-                    data.description = rs.getString("description");
-                    String dataJson = rs.getString("data");
-                    Gson gson = new Gson();
-                    data.paths = gson.fromJson(dataJson, new com.google.gson.reflect.TypeToken<List<PathData>>(){}.getType());
-                    return data;
-                } else {
-                    return null;
+        long start = System.nanoTime();
+        String sql = "SELECT id, version, time, description FROM versions WHERE version = ?";
+        try (SqlitePool.Handle db = read()) {
+            // 版本、路径和文件分三次查询，在同一个读事务中读取同一个快照
+            return inTransaction(db, () -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, version);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? readData(db, rs) : null;
                 }
-            }
+            });
         } catch (Exception e) {
             return null;
+        } finally {
+            recordQuery("getDataByVersion", start);
         }
     }
 
@@ -214,23 +440,164 @@ public class DataConfig {
      */
     @Nullable
     public static Data getLastData() {
-        String sql = "SELECT version, time, description, data FROM updates ORDER BY time DESC LIMIT 1";
-        try(PreparedStatement pstmt = connection.prepareStatement(sql);
-            ResultSet rs = pstmt.executeQuery()) {
-            if (rs.next()) {
-                Data data = new Data();
-                data.version = rs.getString("version");
-                data.time = rs.getString("time");
-                data.description = rs.getString("description");
-                String dataJson = rs.getString("data");
-                Gson gson = new Gson();
-                data.paths = gson.fromJson(dataJson, new com.google.gson.reflect.TypeToken<List<PathData>>(){}.getType());
-                return data;
-            } else {
-                return null;
-            }
+        long start = System.nanoTime();
+        String sql = "SELECT id, version, time, description FROM versions ORDER BY time DESC LIMIT 1";
+        try (SqlitePool.Handle db = read()) {
+            return inTransaction(db, () -> {
+                try (ResultSet rs = db.prepare(sql).executeQuery()) {
+                    return rs.next() ? readData(db, rs) : null;
+                }
+            });
         } catch (Exception e) {
             return null;
+        } finally {
+            recordQuery("getLastData", start);
+        }
+    }
+
+    /**
+     * 读取当前行的版本及其全部路径和文件，文件逐行读取，不经过整个清单的 JSON
+     */
+    private static Data readData(SqlitePool.Handle db, ResultSet versionRow) throws SQLException {
+        long versionId = versionRow.getLong("id");
+        Data data = new Data();
+        data.version = versionRow.getString("version");
+        data.time = versionRow.getString("time");
+        data.description = versionRow.getString("description");
+        data.paths = new ArrayList<>();
+
+        Map<Long, PathData> pathsById = new HashMap<>();
+        PreparedStatement paths = db.prepare("SELECT id, model, target_path FROM paths WHERE version_id = ? ORDER BY id");
+        paths.setLong(1, versionId);
+        try (ResultSet rs = paths.executeQuery()) {
+            while (rs.next()) {
+                PathData pathData = new PathData();
+                pathData.model = rs.getString("model");
+                pathData.targetPath = rs.getString("target_path");
+                pathData.files = new ArrayList<>();
+                data.paths.add(pathData);
+                pathsById.put(rs.getLong("id"), pathData);
+            }
+        }
+        // 文件按写入顺序读出，与提交时的顺序一致
+        PreparedStatement files = db.prepare(
+                "SELECT path_id, source_path, target_path, md5, size, chunks FROM files WHERE version_id = ? ORDER BY id");
+        files.setLong(1, versionId);
+        try (ResultSet rs = files.executeQuery()) {
+            while (rs.next()) {
+                PathData pathData = pathsById.get(rs.getLong("path_id"));
+                if (pathData == null) {
+                    continue;
+                }
+                FileData fileData = new FileData();
+                fileData.sourcePath = rs.getString("source_path");
+                fileData.targetPath = rs.getString("target_path");
+                fileData.md5 = rs.getString("md5");
+                fileData.size = rs.getLong("size");
+                String chunks = rs.getString("chunks");
+                if (chunks != null) {
+                    fileData.chunks = GSON.fromJson(chunks, CHUNK_LIST);
+                }
+                pathData.files.add(fileData);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * 写入版本的路径和文件，每个路径的文件批量插入，需要在事务中调用
+     */
+    private static void insertPaths(SqlitePool.Handle db, long versionId, @Nullable List<PathData> paths)
+            throws SQLException {
+        if (paths == null) {
+            return;
+        }
+        PreparedStatement pathStmt = db.prepareWithKeys(
+                "INSERT INTO paths (version_id, model, target_path) VALUES (?, ?, ?)");
+        PreparedStatement fileStmt = db.prepare(
+                "INSERT INTO files (version_id, path_id, source_path, target_path, md5, size, chunks) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?)");
+        for (PathData pathData : paths) {
+            pathStmt.setLong(1, versionId);
+            pathStmt.setString(2, pathData.model);
+            pathStmt.setString(3, pathData.targetPath);
+            pathStmt.executeUpdate();
+            long pathId = generatedKey(pathStmt);
+            if (pathData.files == null) {
+                continue;
+            }
+            int pending = 0;
+            for (FileData fileData : pathData.files) {
+                fileStmt.setLong(1, versionId);
+                fileStmt.setLong(2, pathId);
+                fileStmt.setString(3, fileData.sourcePath);
+                fileStmt.setString(4, fileData.targetPath);
+                fileStmt.setString(5, fileData.md5);
+                fileStmt.setLong(6, fileData.size);
+                fileStmt.setString(7, fileData.chunks != null ? GSON.toJson(fileData.chunks) : null);
+                fileStmt.addBatch();
+                if (++pending == INSERT_BATCH) {
+                    fileStmt.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                fileStmt.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * 删除版本的全部路径和文件，需要在事务中调用
+     */
+    private static void deleteContents(SqlitePool.Handle db, long versionId) throws SQLException {
+        PreparedStatement files = db.prepare("DELETE FROM files WHERE version_id = ?");
+        files.setLong(1, versionId);
+        files.executeUpdate();
+        PreparedStatement paths = db.prepare("DELETE FROM paths WHERE version_id = ?");
+        paths.setLong(1, versionId);
+        paths.executeUpdate();
+    }
+
+    @Nullable
+    private static Long findVersionId(SqlitePool.Handle db, String version) throws SQLException {
+        PreparedStatement pstmt = db.prepare("SELECT id FROM versions WHERE version = ?");
+        pstmt.setString(1, version);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getLong("id") : null;
+        }
+    }
+
+    private static long generatedKey(PreparedStatement pstmt) throws SQLException {
+        try (ResultSet keys = pstmt.getGeneratedKeys()) {
+            if (!keys.next()) {
+                throw new SQLException("No generated key returned");
+            }
+            return keys.getLong(1);
+        }
+    }
+
+    private interface SqlWork<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * 在一个事务中执行，失败时回滚
+     */
+    private static <T> T inTransaction(SqlitePool.Handle db, SqlWork<T> work) throws SQLException {
+        Connection connection = db.connection;
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            T result = work.run();
+            connection.commit();
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            db.reset();
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
         }
     }
 
@@ -240,9 +607,10 @@ public class DataConfig {
      */
     @Nullable
     public static String getLastVersion() {
-        String sql = "SELECT version FROM updates ORDER BY time DESC LIMIT 1";
-        try(PreparedStatement pstmt = connection.prepareStatement(sql);
-            ResultSet rs = pstmt.executeQuery()) {
+        long start = System.nanoTime();
+        String sql = "SELECT version FROM versions ORDER BY time DESC LIMIT 1";
+        try (SqlitePool.Handle db = read();
+             ResultSet rs = db.prepare(sql).executeQuery()) {
             if (rs.next()) {
                 return rs.getString("version");
             } else {
@@ -250,6 +618,8 @@ public class DataConfig {
             }
         } catch (Exception e) {
             return null;
+        } finally {
+            recordQuery("getLastVersion", start);
         }
     }
 
@@ -259,9 +629,10 @@ public class DataConfig {
      */
     @Nullable
     public static String getLastTime() {
-        String sql = "SELECT time FROM updates ORDER BY time DESC LIMIT 1";
-        try(PreparedStatement pstmt = connection.prepareStatement(sql);
-            ResultSet rs = pstmt.executeQuery()) {
+        long start = System.nanoTime();
+        String sql = "SELECT time FROM versions ORDER BY time DESC LIMIT 1";
+        try (SqlitePool.Handle db = read();
+             ResultSet rs = db.prepare(sql).executeQuery()) {
             if (rs.next()) {
                 return rs.getString("time");
             } else {
@@ -269,6 +640,8 @@ public class DataConfig {
             }
         } catch (Exception e) {
             return null;
+        } finally {
+            recordQuery("getLastTime", start);
         }
     }
 
@@ -278,9 +651,10 @@ public class DataConfig {
      */
     @Nullable
     public static String getLastDescription() {
-        String sql = "SELECT description FROM updates ORDER BY time DESC LIMIT 1";
-        try(PreparedStatement pstmt = connection.prepareStatement(sql);
-            ResultSet rs = pstmt.executeQuery()) {
+        long start = System.nanoTime();
+        String sql = "SELECT description FROM versions ORDER BY time DESC LIMIT 1";
+        try (SqlitePool.Handle db = read();
+             ResultSet rs = db.prepare(sql).executeQuery()) {
             if (rs.next()) {
                 return rs.getString("description");
             } else {
@@ -288,6 +662,8 @@ public class DataConfig {
             }
         } catch (Exception e) {
             return null;
+        } finally {
+            recordQuery("getLastDescription", start);
         }
     }
 
@@ -297,16 +673,80 @@ public class DataConfig {
      */
     @Nullable
     public static List<String> getAllVersions() {
-        String sql = "SELECT version FROM updates ORDER BY time DESC";
-        List<String> versions = new java.util.ArrayList<>();
-        try(PreparedStatement pstmt = connection.prepareStatement(sql);
-            ResultSet rs = pstmt.executeQuery()) {
+        long start = System.nanoTime();
+        String sql = "SELECT version FROM versions ORDER BY time DESC";
+        List<String> versions = new ArrayList<>();
+        try (SqlitePool.Handle db = read();
+             ResultSet rs = db.prepare(sql).executeQuery()) {
             while (rs.next()) {
                 versions.add(rs.getString("version"));
             }
         } catch (Exception e) {
             return null;
+        } finally {
+            recordQuery("getAllVersions", start);
         }
         return versions;
     }
+
+    /**
+     * 保存两个版本之间的变化，已存在时覆盖
+     * @return 是否保存成功
+     */
+    public static boolean putChanges(ChangeData changes) {
+        long start = System.nanoTime();
+        String sql = "INSERT OR REPLACE INTO changes (from_version, to_version, data) VALUES (?, ?, ?)";
+        try (SqlitePool.Handle db = write()) {
+            PreparedStatement pstmt = db.prepare(sql);
+            pstmt.setString(1, changes.from);
+            pstmt.setString(2, changes.to);
+            pstmt.setString(3, GSON.toJson(changes.paths));
+            pstmt.executeUpdate();
+            return true;
+        } catch (Exception e) {
+            LOGGER.error("Failed to save changes from {} to {}", changes.from, changes.to, e);
+            return false;
+        } finally {
+            recordQuery("putChanges", start);
+        }
+    }
+
+    /**
+     * 获取保存的两个版本之间的变化
+     * @return 没有保存时返回null
+     */
+    @Nullable
+    public static ChangeData getChanges(String from, String to) {
+        long start = System.nanoTime();
+        String sql = "SELECT data FROM changes WHERE from_version = ? AND to_version = ?";
+        try (SqlitePool.Handle db = read()) {
+            PreparedStatement pstmt = db.prepare(sql);
+            pstmt.setString(1, from);
+            pstmt.setString(2, to);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                ChangeData changes = new ChangeData();
+                changes.from = from;
+                changes.to = to;
+                changes.paths = GSON.fromJson(rs.getString("data"), CHANGE_LIST);
+                return changes;
+            }
+        } catch (Exception e) {
+            return null;
+        } finally {
+            recordQuery("getChanges", start);
+        }
+    }
+
+    /**
+     * 删除与指定版本有关的变化，版本被编辑或删除后已经不再准确，需要在事务中调用
+     */
+    private static void removeChanges(SqlitePool.Handle db, String version) throws SQLException {
+        PreparedStatement pstmt = db.prepare("DELETE FROM changes WHERE from_version = ? OR to_version = ?");
+        pstmt.setString(1, version);
+        pstmt.setString(2, version);
+        pstmt.executeUpdate();
+    }
 }
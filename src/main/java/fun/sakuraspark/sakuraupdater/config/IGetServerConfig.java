@@ -0,0 +1,127 @@
+package fun.sakuraspark.sakuraupdater.config;
+
+/**
+ * 文件服务器配置的统一入口，根据运行模式从 {@link StandaloneServerConfig} 或 {@link ServerConfig} 读取
+ */
+public interface IGetServerConfig {
+    /**
+     * 线程模型，"fixed" 为固定大小线程池，"virtual" 为每个请求一个虚拟线程（需要 JDK 21+）
+     */
+    static String getExecutor() {
+        if (StandaloneServerConfig.isStandalone()) {
+            return StandaloneServerConfig.getExecutor();
+        } else {
+            return ServerConfig.executor;
+        }
+    }
+
+    /**
+     * 固定线程池的线程数
+     */
+    static int getThreads() {
+        if (StandaloneServerConfig.isStandalone()) {
+            return StandaloneServerConfig.getThreads();
+        } else {
+            return ServerConfig.threads;
+        }
+    }
+
+    /**
+     * 连接等待队列长度，0 表示使用系统默认值
+     */
+    static int getBacklog() {
+        if (StandaloneServerConfig.isStandalone()) {
+            return StandaloneServerConfig.getBacklog();
+        } else {
+            return ServerConfig.backlog;
+        }
+    }
+
+    /**
+     * 最大同时下载数，0 表示不限制
+     */
+    static int getMaxDownloads() {
+        if (StandaloneServerConfig.isStandalone()) {
+            return StandaloneServerConfig.getMaxDownloads();
+        } else {
+            return ServerConfig.maxDownloads;
+        }
+    }
+
+    /**
+     * 全局发送速率上限，KiB/s，0 表示不限制
+     */
+    static int getBandwidthLimit() {
+        if (StandaloneServerConfig.isStandalone()) {
+            return StandaloneServerConfig.getBandwidthLimit();
+        } else {
+            return ServerConfig.bandwidthLimit;
+        }
+    }
+
+    /**
+     * 每个客户端 IP 的发送速率上限，KiB/s，0 表示不限制
+     */
+    static int getClientBandwidthLimit() {
+        if (StandaloneServerConfig.isStandalone()) {
+            return StandaloneServerConfig.getClientBandwidthLimit();
+        } else {
+            return ServerConfig.clientBandwidthLimit;
+        }
+    }
+
+    /**
+     * 内存映射文件缓存的预算，MiB，0 表示禁用
+     */
+    static int getMappedCacheSize() {
+        if (StandaloneServerConfig.isStandalone()) {
+            return StandaloneServerConfig.getMappedCacheSize();
+        } else {
+            return ServerConfig.mappedCacheSize;
+        }
+    }
+
+    /**
+     * 网络引擎，"httpserver" 为 com.sun.net.httpserver，"nio" 为非阻塞事件循环
+     */
+    static String getEngine() {
+        if (StandaloneServerConfig.isStandalone()) {
+            return StandaloneServerConfig.getEngine();
+        } else {
+            return ServerConfig.engine;
+        }
+    }
+
+    /**
+     * nio 引擎的 socket 发送缓冲区，KiB，0 表示使用系统默认值
+     */
+    static int getSocketSendBuffer() {
+        if (StandaloneServerConfig.isStandalone()) {
+            return StandaloneServerConfig.getSocketSendBuffer();
+        } else {
+            return ServerConfig.socketSendBuffer;
+        }
+    }
+
+    /**
+     * nio 引擎的读写和空闲超时，秒
+     */
+    static int getIoTimeout() {
+        if (StandaloneServerConfig.isStandalone()) {
+            return StandaloneServerConfig.getIoTimeout();
+        } else {
+            return ServerConfig.ioTimeout;
+        }
+    }
+
+    /**
+     * 服务端缓存目录，存放预压缩文件等可再生数据
+     */
+    static String getCacheDir() {
+        if (StandaloneServerConfig.isStandalone()) {
+            return "sakuraupdater-cache";
+        } else {
+            return "config/sakuraupdater-cache";
+        }
+    }
+}
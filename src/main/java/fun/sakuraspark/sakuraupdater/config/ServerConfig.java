@@ -46,11 +46,75 @@ public class ServerConfig {
                             + "    'config:push:clientconfig'\n"
                             + "]")
             .defineListAllowEmpty("SYNC_DIR", List.of(), ServerConfig::validateKeyMap);
+
+    private static final ForgeConfigSpec.ConfigValue<String> EXECUTOR = BUILDER
+            .comment("----IMPORTANT!!! Needs to restart!!!----\nThe thread model of the file server, 'fixed' or 'virtual'.\n"
+                    + "'fixed' uses a thread pool with 'threads' threads, 'virtual' uses one virtual thread per request (needs Java 21+, falls back to 'fixed').")
+            .define("executor", "fixed", ServerConfig::validateExecutor);
+
+    private static final ForgeConfigSpec.IntValue THREADS = BUILDER
+            .comment("----IMPORTANT!!! Needs to restart!!!----\nThe number of threads of the 'fixed' thread pool, default is 10.")
+            .defineInRange("threads", 10, 1, 1024);
+
+    private static final ForgeConfigSpec.IntValue BACKLOG = BUILDER
+            .comment("----IMPORTANT!!! Needs to restart!!!----\nThe maximum number of pending connections, 0 means the system default.")
+            .defineInRange("backlog", 0, 0, 65535);
+
+    private static final ForgeConfigSpec.IntValue MAX_DOWNLOADS = BUILDER
+            .comment("----IMPORTANT!!! Needs to restart!!!----\nThe maximum number of concurrent downloads, 0 means unlimited, default is 8.\n"
+                    + "Keep it below 'threads' so heartbeats still get a thread. Extra downloads get HTTP 503 and the client retries later.")
+            .defineInRange("max_downloads", 8, 0, 65535);
+
+    private static final ForgeConfigSpec.IntValue BANDWIDTH_LIMIT = BUILDER
+            .comment("----IMPORTANT!!! Needs to restart!!!----\nThe total upload bandwidth of the file server in KiB/s, 0 means unlimited.")
+            .defineInRange("bandwidth_limit", 0, 0, Integer.MAX_VALUE);
+
+    private static final ForgeConfigSpec.IntValue CLIENT_BANDWIDTH_LIMIT = BUILDER
+            .comment("----IMPORTANT!!! Needs to restart!!!----\nThe upload bandwidth for each client IP in KiB/s, 0 means unlimited.")
+            .defineInRange("client_bandwidth_limit", 0, 0, Integer.MAX_VALUE);
+
+    private static final ForgeConfigSpec.IntValue MAPPED_CACHE_SIZE = BUILDER
+            .comment("----IMPORTANT!!! Needs to restart!!!----\nThe memory budget in MiB for memory-mapping frequently downloaded files, 0 disables it, default is 256.")
+            .defineInRange("mapped_cache_size", 256, 0, 1048576);
+
+    private static final ForgeConfigSpec.ConfigValue<String> ENGINE = BUILDER
+            .comment("----IMPORTANT!!! Needs to restart!!!----\nThe network engine of the file server, 'httpserver' or 'nio'.\n"
+                    + "'httpserver' uses one thread per request, 'nio' uses a single non-blocking event loop that handles many idle or slow connections cheaply.\n"
+                    + "'nio' serves heartbeat, updateList, file, blob, upload and metrics, other features need 'httpserver'.\n"
+                    + "'nio' does not support bandwidth_limit or client_bandwidth_limit and refuses to start when either is set.")
+            .define("engine", "httpserver", ServerConfig::validateEngine);
+
+    private static final ForgeConfigSpec.IntValue SOCKET_SEND_BUFFER = BUILDER
+            .comment("----IMPORTANT!!! Needs to restart!!!----\nThe socket send buffer (SO_SNDBUF) of the 'nio' engine in KiB, 0 means the system default.")
+            .defineInRange("socket_send_buffer", 0, 0, 65536);
+
+    private static final ForgeConfigSpec.IntValue IO_TIMEOUT = BUILDER
+            .comment("----IMPORTANT!!! Needs to restart!!!----\nThe timeout of the 'nio' engine in seconds, default is 30.\n"
+                    + "A request must arrive completely, a response must make progress and an idle connection is closed within this time.")
+            .defineInRange("io_timeout", 30, 1, 3600);
     // static final ForgeConfigSpec for the server config
 
     public static final ForgeConfigSpec SPEC = BUILDER.build();
 
     public static int port;
+    public static String executor;
+    public static int threads;
+    public static int backlog;
+    public static int maxDownloads;
+    public static int bandwidthLimit;
+    public static int clientBandwidthLimit;
+    public static int mappedCacheSize;
+    public static String engine;
+    public static int socketSendBuffer;
+    public static int ioTimeout;
+
+    private static boolean validateExecutor(final Object obj) {
+        return "fixed".equals(obj) || "virtual".equals(obj);
+    }
+
+    private static boolean validateEngine(final Object obj) {
+        return "httpserver".equals(obj) || "nio".equals(obj);
+    }
 
     private static boolean validateKeyMap(final Object obj) {
         if (obj instanceof String path && path.split(":").length >= 2) {
@@ -79,6 +143,16 @@ public class ServerConfig {
     @SubscribeEvent
     public static void onLoad(final ModConfigEvent.Loading event) {
         port = PORT.get();
+        executor = EXECUTOR.get();
+        threads = THREADS.get();
+        backlog = BACKLOG.get();
+        maxDownloads = MAX_DOWNLOADS.get();
+        bandwidthLimit = BANDWIDTH_LIMIT.get();
+        clientBandwidthLimit = CLIENT_BANDWIDTH_LIMIT.get();
+        mappedCacheSize = MAPPED_CACHE_SIZE.get();
+        engine = ENGINE.get();
+        socketSendBuffer = SOCKET_SEND_BUFFER.get();
+        ioTimeout = IO_TIMEOUT.get();
         SakuraUpdaterServer.getInstance().runServer();
     }
 
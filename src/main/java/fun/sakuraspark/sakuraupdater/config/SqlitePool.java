@@ -0,0 +1,181 @@
+package fun.sakuraspark.sakuraupdater.config;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SQLite 连接池
+ * <p>
+ * 数据库使用 WAL 模式，一个写连接加若干只读连接：读取使用提交前的快照，不会被正在进行的提交阻塞，
+ * 多个读取在各自的连接上并行执行。写连接同一时间只由一个线程使用，SQLite 本身也只允许一个写事务。
+ * 每个连接缓存自己的 PreparedStatement，同一条 SQL 不会重复编译。
+ * </p>
+ */
+class SqlitePool {
+    // 等待连接和数据库锁的最长时间
+    private static final long TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * 借出的连接，使用完后关闭以归还
+     */
+    final class Handle implements AutoCloseable {
+        final Connection connection;
+        private final boolean writer;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private Handle(Connection connection, boolean writer) {
+            this.connection = connection;
+            this.writer = writer;
+        }
+
+        /**
+         * 获取缓存的 PreparedStatement，调用者不要关闭它，只需要关闭 ResultSet
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement pstmt = statements.get(sql);
+            if (pstmt == null) {
+                pstmt = connection.prepareStatement(sql);
+                statements.put(sql, pstmt);
+            }
+            return pstmt;
+        }
+
+        /**
+         * 获取缓存的、返回自增主键的 PreparedStatement
+         */
+        PreparedStatement prepareWithKeys(String sql) throws SQLException {
+            String key = "keys:" + sql;
+            PreparedStatement pstmt = statements.get(key);
+            if (pstmt == null) {
+                pstmt = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+                statements.put(key, pstmt);
+            }
+            return pstmt;
+        }
+
+        /**
+         * 清除缓存语句中未执行的批量参数，事务失败后调用，避免残留的行在下次执行时写入
+         */
+        void reset() {
+            for (PreparedStatement pstmt : statements.values()) {
+                try {
+                    pstmt.clearBatch();
+                    pstmt.clearParameters();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (writer) {
+                writeLock.unlock();
+            } else {
+                readers.offer(this);
+            }
+        }
+
+        private void closeConnection() {
+            for (PreparedStatement pstmt : statements.values()) {
+                try {
+                    pstmt.close();
+                } catch (SQLException ignored) {
+                }
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    private final Handle writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final BlockingQueue<Handle> readers;
+    private final List<Handle> all = new ArrayList<>();
+
+    /**
+     * @param path 数据库文件
+     * @param readerCount 只读连接数
+     */
+    SqlitePool(String path, int readerCount) throws SQLException {
+        String url = "jdbc:sqlite:" + path;
+        try {
+            writer = new Handle(DriverManager.getConnection(url), true);
+            all.add(writer);
+            try (Statement stmt = writer.connection.createStatement()) {
+                // WAL 模式保存在数据库文件中，只需要由写连接设置一次
+                stmt.execute("PRAGMA journal_mode = WAL");
+                // WAL 模式下 NORMAL 不会损坏数据库，只是掉电时可能丢失最后的提交
+                stmt.execute("PRAGMA synchronous = NORMAL");
+                stmt.execute("PRAGMA busy_timeout = " + TIMEOUT_MILLIS);
+            }
+            readers = new ArrayBlockingQueue<>(readerCount);
+            for (int i = 0; i < readerCount; i++) {
+                Handle reader = new Handle(DriverManager.getConnection(url), false);
+                all.add(reader);
+                try (Statement stmt = reader.connection.createStatement()) {
+                    stmt.execute("PRAGMA query_only = ON");
+                    stmt.execute("PRAGMA busy_timeout = " + TIMEOUT_MILLIS);
+                }
+                readers.add(reader);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * 借出一个只读连接，没有空闲连接时等待
+     */
+    Handle read() throws SQLException {
+        try {
+            Handle reader = readers.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (reader == null) {
+                throw new SQLException("Timed out waiting for a database read connection");
+            }
+            return reader;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database read connection", e);
+        }
+    }
+
+    /**
+     * 独占写连接，同一线程可以重复获取
+     */
+    Handle write() throws SQLException {
+        try {
+            if (!writeLock.tryLock(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for the database write connection");
+            }
+            return writer;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the database write connection", e);
+        }
+    }
+
+    /**
+     * 关闭全部连接
+     */
+    void close() {
+        for (Handle handle : all) {
+            handle.closeConnection();
+        }
+        all.clear();
+    }
+}
@@ -26,6 +26,19 @@ public class StandaloneServerConfig {
     // ---- 配置值 ----
     private static int port = 25564;
     private static List<String> syncDirs = new ArrayList<>();
+    private static String executor = "fixed";
+    private static int threads = 10;
+    private static int backlog = 0;
+    private static int maxDownloads = 8;
+    private static int bandwidthLimit = 0;
+    private static int clientBandwidthLimit = 0;
+    private static int mappedCacheSize = 256;
+    private static String engine = "httpserver";
+    private static int socketSendBuffer = 0;
+    private static int ioTimeout = 30;
+    private static String relayUpstream = "";
+    private static boolean relayPrefetch = true;
+    private static int relayPollInterval = 60;
 
     private StandaloneServerConfig() {
         // 工具类，禁止实例化
@@ -48,7 +61,11 @@ public class StandaloneServerConfig {
                 createDefaultConfig(configPath);
             }
             loadConfig(configPath);
-            LOGGER.info("Standalone config loaded successfully. port={}, syncDirs={}", port, syncDirs);
+            LOGGER.info("Standalone config loaded successfully. port={}, syncDirs={}, executor={}, threads={}, backlog={}, "
+                    + "maxDownloads={}, bandwidthLimit={}, clientBandwidthLimit={}, mappedCacheSize={}, relayUpstream={}, "
+                    + "engine={}, socketSendBuffer={}, ioTimeout={}",
+                    port, syncDirs, executor, threads, backlog, maxDownloads, bandwidthLimit, clientBandwidthLimit,
+                    mappedCacheSize, relayUpstream, engine, socketSendBuffer, ioTimeout);
         } catch (Exception e) {
             LOGGER.error("Failed to load config file '{}', using defaults", CONFIG_FILE, e);
         }
@@ -77,6 +94,146 @@ public class StandaloneServerConfig {
                 }
             }
 
+            // executor
+            Object executorObj = config.get("executor");
+            if (executorObj instanceof String e) {
+                if ("fixed".equals(e) || "virtual".equals(e)) {
+                    executor = e;
+                } else {
+                    LOGGER.warn("Config 'executor' should be 'fixed' or 'virtual': {}, using default {}", e, executor);
+                }
+            }
+
+            // threads
+            Object threadsObj = config.get("threads");
+            if (threadsObj instanceof Number) {
+                int t = ((Number) threadsObj).intValue();
+                if (t >= 1 && t <= 1024) {
+                    threads = t;
+                } else {
+                    LOGGER.warn("Config 'threads' out of range (1-1024): {}, using default {}", t, threads);
+                }
+            }
+
+            // backlog
+            Object backlogObj = config.get("backlog");
+            if (backlogObj instanceof Number) {
+                int b = ((Number) backlogObj).intValue();
+                if (b >= 0 && b <= 65535) {
+                    backlog = b;
+                } else {
+                    LOGGER.warn("Config 'backlog' out of range (0-65535): {}, using default {}", b, backlog);
+                }
+            }
+
+            // max_downloads
+            Object maxDownloadsObj = config.get("max_downloads");
+            if (maxDownloadsObj instanceof Number) {
+                int m = ((Number) maxDownloadsObj).intValue();
+                if (m >= 0 && m <= 65535) {
+                    maxDownloads = m;
+                } else {
+                    LOGGER.warn("Config 'max_downloads' out of range (0-65535): {}, using default {}", m, maxDownloads);
+                }
+            }
+
+            // bandwidth_limit
+            Object bandwidthObj = config.get("bandwidth_limit");
+            if (bandwidthObj instanceof Number) {
+                long l = ((Number) bandwidthObj).longValue();
+                if (l >= 0 && l <= Integer.MAX_VALUE) {
+                    bandwidthLimit = (int) l;
+                } else {
+                    LOGGER.warn("Config 'bandwidth_limit' out of range (0-{}): {}, using default {}",
+                            Integer.MAX_VALUE, l, bandwidthLimit);
+                }
+            }
+
+            // client_bandwidth_limit
+            Object clientBandwidthObj = config.get("client_bandwidth_limit");
+            if (clientBandwidthObj instanceof Number) {
+                long l = ((Number) clientBandwidthObj).longValue();
+                if (l >= 0 && l <= Integer.MAX_VALUE) {
+                    clientBandwidthLimit = (int) l;
+                } else {
+                    LOGGER.warn("Config 'client_bandwidth_limit' out of range (0-{}): {}, using default {}",
+                            Integer.MAX_VALUE, l, clientBandwidthLimit);
+                }
+            }
+
+            // mapped_cache_size
+            Object mappedCacheObj = config.get("mapped_cache_size");
+            if (mappedCacheObj instanceof Number) {
+                int m = ((Number) mappedCacheObj).intValue();
+                if (m >= 0 && m <= 1048576) {
+                    mappedCacheSize = m;
+                } else {
+                    LOGGER.warn("Config 'mapped_cache_size' out of range (0-1048576): {}, using default {}",
+                            m, mappedCacheSize);
+                }
+            }
+
+            // engine
+            Object engineObj = config.get("engine");
+            if (engineObj instanceof String e) {
+                if ("httpserver".equals(e) || "nio".equals(e)) {
+                    engine = e;
+                } else {
+                    LOGGER.warn("Config 'engine' should be 'httpserver' or 'nio': {}, using default {}", e, engine);
+                }
+            }
+
+            // socket_send_buffer
+            Object sendBufferObj = config.get("socket_send_buffer");
+            if (sendBufferObj instanceof Number) {
+                int b = ((Number) sendBufferObj).intValue();
+                if (b >= 0 && b <= 65536) {
+                    socketSendBuffer = b;
+                } else {
+                    LOGGER.warn("Config 'socket_send_buffer' out of range (0-65536): {}, using default {}",
+                            b, socketSendBuffer);
+                }
+            }
+
+            // io_timeout
+            Object ioTimeoutObj = config.get("io_timeout");
+            if (ioTimeoutObj instanceof Number) {
+                int t = ((Number) ioTimeoutObj).intValue();
+                if (t >= 1 && t <= 3600) {
+                    ioTimeout = t;
+                } else {
+                    LOGGER.warn("Config 'io_timeout' out of range (1-3600): {}, using default {}", t, ioTimeout);
+                }
+            }
+
+            // relay_upstream
+            Object relayUpstreamObj = config.get("relay_upstream");
+            if (relayUpstreamObj instanceof String r) {
+                if (r.isBlank() || parseRelayPort(r.trim()) > 0) {
+                    relayUpstream = r.trim();
+                } else {
+                    LOGGER.warn("Config 'relay_upstream' should be 'host:port': {}, relay mode disabled", r);
+                }
+            }
+
+            // relay_prefetch
+            Object relayPrefetchObj = config.get("relay_prefetch");
+            if (relayPrefetchObj instanceof Boolean b) {
+                relayPrefetch = b;
+            }
+
+            // relay_poll_interval
+            Object relayPollObj = config.get("relay_poll_interval");
+            if (relayPollObj instanceof Number) {
+                int i = ((Number) relayPollObj).intValue();
+                if (i >= 10 && i <= 86400) {
+                    relayPollInterval = i;
+                } else {
+                    LOGGER.warn("Config 'relay_poll_interval' out of range (10-86400): {}, using default {}",
+                            i, relayPollInterval);
+                }
+            }
+
             // SYNC_DIR
             List<String> syncList = config.get("SYNC_DIR");
             if (syncList != null) {
@@ -111,11 +268,80 @@ public class StandaloneServerConfig {
                 #    'config:push:clientconfig'
                 #]
                 SYNC_DIR = []
+                #----IMPORTANT!!! Needs to restart!!!----
+                #The thread model of the file server, 'fixed' or 'virtual'.
+                #'fixed' uses a thread pool with 'threads' threads, 'virtual' uses one virtual thread per request (needs Java 21+, falls back to 'fixed').
+                executor = "fixed"
+                #----IMPORTANT!!! Needs to restart!!!----
+                #The number of threads of the 'fixed' thread pool, default is 10.
+                #Range: 1 ~ 1024
+                threads = 10
+                #----IMPORTANT!!! Needs to restart!!!----
+                #The maximum number of pending connections, 0 means the system default.
+                #Range: 0 ~ 65535
+                backlog = 0
+                #----IMPORTANT!!! Needs to restart!!!----
+                #The maximum number of concurrent downloads, 0 means unlimited, default is 8.
+                #Keep it below 'threads' so heartbeats still get a thread. Extra downloads get HTTP 503 and the client retries later.
+                #Range: 0 ~ 65535
+                max_downloads = 8
+                #----IMPORTANT!!! Needs to restart!!!----
+                #The total upload bandwidth of the file server in KiB/s, 0 means unlimited.
+                bandwidth_limit = 0
+                #----IMPORTANT!!! Needs to restart!!!----
+                #The upload bandwidth for each client IP in KiB/s, 0 means unlimited.
+                client_bandwidth_limit = 0
+                #----IMPORTANT!!! Needs to restart!!!----
+                #The memory budget in MiB for memory-mapping frequently downloaded files, 0 disables it, default is 256.
+                #Range: 0 ~ 1048576
+                mapped_cache_size = 256
+                #----IMPORTANT!!! Needs to restart!!!----
+                #The network engine of the file server, 'httpserver' or 'nio'.
+                #'httpserver' uses one thread per request, 'nio' uses a single non-blocking event loop that handles many idle or slow connections cheaply.
+                #'nio' serves heartbeat, updateList, file, blob, upload and metrics, other features need 'httpserver'.
+                engine = "httpserver"
+                #----IMPORTANT!!! Needs to restart!!!----
+                #The socket send buffer (SO_SNDBUF) of the 'nio' engine in KiB, 0 means the system default.
+                #Range: 0 ~ 65536
+                socket_send_buffer = 0
+                #----IMPORTANT!!! Needs to restart!!!----
+                #The timeout of the 'nio' engine in seconds, default is 30.
+                #A request must arrive completely, a response must make progress and an idle connection is closed within this time.
+                #Range: 1 ~ 3600
+                io_timeout = 30
+                #----IMPORTANT!!! Needs to restart!!!----
+                #Run as a relay of another SakuraUpdater server, in the format 'host:port', empty disables relay mode.
+                #A relay mirrors the versions of the upstream server and caches its files locally, SYNC_DIR and commit are not used.
+                relay_upstream = ""
+                #----IMPORTANT!!! Needs to restart!!!----
+                #Download all files of a new upstream version in advance, otherwise files are fetched on first request.
+                relay_prefetch = true
+                #----IMPORTANT!!! Needs to restart!!!----
+                #How often the relay checks the upstream server for a new version, in seconds.
+                #Range: 10 ~ 86400
+                relay_poll_interval = 60
                 """;
 
         Files.writeString(configPath, defaultContent);
     }
 
+    /**
+     * 解析 relay_upstream 中的端口
+     * @return 端口，格式错误时返回 -1
+     */
+    private static int parseRelayPort(String upstream) {
+        int colon = upstream.lastIndexOf(':');
+        if (colon <= 0) {
+            return -1;
+        }
+        try {
+            int p = Integer.parseInt(upstream.substring(colon + 1));
+            return p >= 1 && p <= 65535 ? p : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * 验证同步目录条目格式
      */
@@ -150,6 +376,75 @@ public class StandaloneServerConfig {
         return List.copyOf(syncDirs);
     }
 
+    public static String getExecutor() {
+        return executor;
+    }
+
+    public static int getThreads() {
+        return threads;
+    }
+
+    public static int getBacklog() {
+        return backlog;
+    }
+
+    public static int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    public static int getBandwidthLimit() {
+        return bandwidthLimit;
+    }
+
+    public static int getClientBandwidthLimit() {
+        return clientBandwidthLimit;
+    }
+
+    public static int getMappedCacheSize() {
+        return mappedCacheSize;
+    }
+
+    public static String getEngine() {
+        return engine;
+    }
+
+    public static int getSocketSendBuffer() {
+        return socketSendBuffer;
+    }
+
+    public static int getIoTimeout() {
+        return ioTimeout;
+    }
+
+    /**
+     * 是否以中继模式运行
+     */
+    public static boolean isRelay() {
+        return !relayUpstream.isEmpty();
+    }
+
+    /**
+     * 中继模式的上游服务器地址
+     */
+    public static String getRelayHost() {
+        return relayUpstream.substring(0, relayUpstream.lastIndexOf(':'));
+    }
+
+    /**
+     * 中继模式的上游服务器端口
+     */
+    public static int getRelayPort() {
+        return parseRelayPort(relayUpstream);
+    }
+
+    public static boolean isRelayPrefetch() {
+        return relayPrefetch;
+    }
+
+    public static int getRelayPollInterval() {
+        return relayPollInterval;
+    }
+
     /**
      * 重新加载配置 (热重载)
      */
@@ -157,6 +452,19 @@ public class StandaloneServerConfig {
         initialized = false;
         syncDirs = new ArrayList<>();
         port = 25564;
+        executor = "fixed";
+        threads = 10;
+        backlog = 0;
+        maxDownloads = 8;
+        bandwidthLimit = 0;
+        clientBandwidthLimit = 0;
+        mappedCacheSize = 256;
+        engine = "httpserver";
+        socketSendBuffer = 0;
+        ioTimeout = 30;
+        relayUpstream = "";
+        relayPrefetch = true;
+        relayPollInterval = 60;
         initialize();
     }
 }
@@ -0,0 +1,360 @@
+package fun.sakuraspark.sakuraupdater.network;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+import com.google.gson.Gson;
+
+import fun.sakuraspark.sakuraupdater.config.DataConfig;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.ChangeData;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.Data;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.FileChangeData;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.FileData;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.PathChangeData;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.PathData;
+import fun.sakuraspark.sakuraupdater.utils.SingleFlight;
+
+/**
+ * 版本之间的变化
+ * <p>
+ * 提交新版本时计算与上一版本的变化并保存到数据库，按路径记录新增、删除、内容改变和改名的文件。
+ * 客户端跨越多个版本时，把相邻版本的变化依次组合，结果的大小只与实际变化的文件数有关，与清单大小无关。
+ * 数据库中缺少某一段变化时（旧数据、版本被编辑或删除）从两个版本的清单重新计算并保存。
+ * </p>
+ */
+public class ChangeSets {
+    private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(ChangeSets.class);
+    private static final Gson GSON = new Gson();
+    // 跨越的版本超过该数量时直接比较两个版本的清单，避免逐段查询数据库
+    private static final int MAX_CHAIN = 32;
+
+    /**
+     * 缓存的变化及其序列化结果
+     */
+    public static class Entry {
+        public final ChangeData data;
+        public final byte[] json;
+        private volatile byte[] gzip;
+
+        private Entry(ChangeData data) {
+            this.data = data;
+            this.json = GSON.toJson(data).getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * gzip 压缩后的 JSON，第一次使用时生成
+         */
+        public byte[] gzip() {
+            byte[] result = gzip;
+            if (result == null) {
+                result = ManifestCache.compress(json);
+                gzip = result;
+            }
+            return result;
+        }
+    }
+
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final SingleFlight<String, Entry> loads = new SingleFlight<>("changes");
+    // 每次失效递增，防止失效前开始的计算把旧数据写回缓存
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * 获取从 from 更新到 to 的变化
+     * @return 任一版本不存在时返回 null
+     */
+    @Nullable
+    public Entry get(String from, String to) {
+        String key = from + "\n" + to;
+        Entry entry = cache.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        long gen = generation.get();
+        return loads.execute(gen + "/" + key, () -> {
+            ChangeData data = load(from, to);
+            if (data == null) {
+                return null;
+            }
+            Entry loaded = new Entry(data);
+            if (generation.get() == gen) {
+                cache.put(key, loaded);
+            }
+            return loaded;
+        });
+    }
+
+    /**
+     * 清空缓存，数据变更后调用
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+    @Nullable
+    private static ChangeData load(String from, String to) {
+        List<String> versions = DataConfig.getAllVersions(); // 按时间从新到旧
+        if (versions == null) {
+            return null;
+        }
+        int fromIndex = versions.indexOf(from);
+        int toIndex = versions.indexOf(to);
+        if (fromIndex < 0 || toIndex < 0) {
+            return null;
+        }
+        if (fromIndex == toIndex) {
+            return empty(from, to);
+        }
+        // 回退到旧版本或跨越太多版本时直接比较清单
+        if (fromIndex < toIndex || fromIndex - toIndex > MAX_CHAIN) {
+            Data fromData = DataConfig.getDataByVersion(from);
+            Data toData = DataConfig.getDataByVersion(to);
+            return fromData == null || toData == null ? null : diff(fromData, toData);
+        }
+        List<ChangeData> chain = new ArrayList<>(fromIndex - toIndex);
+        for (int i = fromIndex; i > toIndex; i--) {
+            ChangeData step = step(versions.get(i), versions.get(i - 1));
+            if (step == null) {
+                return null;
+            }
+            chain.add(step);
+        }
+        return chain.size() == 1 ? chain.get(0) : compose(chain);
+    }
+
+    /**
+     * 获取相邻两个版本的变化，数据库中没有时计算并保存
+     */
+    @Nullable
+    private static ChangeData step(String from, String to) {
+        ChangeData stored = DataConfig.getChanges(from, to);
+        if (stored != null) {
+            return stored;
+        }
+        Data fromData = DataConfig.getDataByVersion(from);
+        Data toData = DataConfig.getDataByVersion(to);
+        if (fromData == null || toData == null) {
+            return null;
+        }
+        ChangeData computed = diff(fromData, toData);
+        DataConfig.putChanges(computed);
+        LOGGER.debug("Computed missing changes from {} to {}", from, to);
+        return computed;
+    }
+
+    /**
+     * 计算并保存新提交的版本与上一版本的变化，提交后调用
+     * @param previous 上一版本，没有时为 null
+     * @return 有变化的路径数
+     */
+    public static int record(@Nullable Data previous, String version, List<PathData> paths) {
+        if (previous == null || previous.version == null || previous.version.equals(version)) {
+            return 0;
+        }
+        Data current = new Data();
+        current.version = version;
+        current.paths = paths;
+        ChangeData changes = diff(previous, current);
+        DataConfig.putChanges(changes);
+        return changes.paths.size();
+    }
+
+    /**
+     * 比较两个版本的清单
+     */
+    public static ChangeData diff(Data from, Data to) {
+        Map<String, PathData> oldPaths = byTarget(from.paths);
+        Map<String, PathData> newPaths = byTarget(to.paths);
+        Set<String> targets = new LinkedHashSet<>(newPaths.keySet());
+        targets.addAll(oldPaths.keySet());
+
+        ChangeData changes = empty(from.version, to.version);
+        for (String target : targets) {
+            PathData oldPath = oldPaths.get(target);
+            PathData newPath = newPaths.get(target);
+            String model = newPath != null ? newPath.model : oldPath.model;
+            PathChangeData pathChanges = classify(model, target, filesByTarget(oldPath), filesByTarget(newPath));
+            if (pathChanges != null) {
+                changes.paths.add(pathChanges);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * 依次组合相邻版本的变化，得到从第一个版本到最后一个版本的变化
+     */
+    public static ChangeData compose(List<ChangeData> chain) {
+        // 每个路径中被改动过的文件：起始版本中的状态和当前状态，null 表示不存在
+        Map<String, Map<String, FileData>> before = new LinkedHashMap<>();
+        Map<String, Map<String, FileData>> after = new LinkedHashMap<>();
+        Map<String, String> models = new HashMap<>();
+        for (ChangeData step : chain) {
+            for (PathChangeData pathChanges : step.paths) {
+                String target = pathChanges.targetPath;
+                models.put(target, pathChanges.model);
+                Map<String, FileData> first = before.computeIfAbsent(target, k -> new LinkedHashMap<>());
+                Map<String, FileData> last = after.computeIfAbsent(target, k -> new LinkedHashMap<>());
+                // 先处理移走的文件，同一步中可能有别的文件移到同一路径
+                for (FileData file : list(pathChanges.removed)) {
+                    remember(first, file.targetPath, file);
+                    last.put(file.targetPath, null);
+                }
+                for (FileChangeData rename : list(pathChanges.renamed)) {
+                    remember(first, rename.from.targetPath, rename.from);
+                    last.put(rename.from.targetPath, null);
+                }
+                for (FileChangeData change : list(pathChanges.changed)) {
+                    remember(first, change.from.targetPath, change.from);
+                    last.put(change.to.targetPath, change.to);
+                }
+                for (FileChangeData rename : list(pathChanges.renamed)) {
+                    remember(first, rename.to.targetPath, null);
+                    last.put(rename.to.targetPath, rename.to);
+                }
+                for (FileData file : list(pathChanges.added)) {
+                    remember(first, file.targetPath, null);
+                    last.put(file.targetPath, file);
+                }
+            }
+        }
+        ChangeData changes = empty(chain.get(0).from, chain.get(chain.size() - 1).to);
+        for (Map.Entry<String, Map<String, FileData>> path : before.entrySet()) {
+            String target = path.getKey();
+            PathChangeData pathChanges = classify(models.get(target), target, path.getValue(), after.get(target));
+            if (pathChanges != null) {
+                changes.paths.add(pathChanges);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * 比较同一路径下两个版本的文件，值为 null 的项视为不存在，内容相同的新增和删除合并为改名
+     * @return 没有变化时返回 null
+     */
+    @Nullable
+    private static PathChangeData classify(String model, String targetPath, Map<String, FileData> before,
+            Map<String, FileData> after) {
+        PathChangeData result = new PathChangeData();
+        result.model = model;
+        result.targetPath = targetPath;
+        result.added = new ArrayList<>();
+        result.removed = new ArrayList<>();
+        result.changed = new ArrayList<>();
+        result.renamed = new ArrayList<>();
+
+        Set<String> files = new LinkedHashSet<>(after.keySet());
+        files.addAll(before.keySet());
+        for (String file : files) {
+            FileData oldFile = before.get(file);
+            FileData newFile = after.get(file);
+            if (oldFile == null && newFile != null) {
+                result.added.add(newFile);
+            } else if (oldFile != null && newFile == null) {
+                result.removed.add(oldFile);
+            } else if (oldFile != null && !oldFile.md5.equals(newFile.md5)) {
+                result.changed.add(fileChange(oldFile, newFile));
+            }
+        }
+
+        // 被删除的文件按内容索引，与内容相同的新增文件配对
+        Map<String, Deque<FileData>> removedByMd5 = new HashMap<>();
+        for (FileData file : result.removed) {
+            removedByMd5.computeIfAbsent(file.md5, k -> new ArrayDeque<>()).add(file);
+        }
+        Iterator<FileData> added = result.added.iterator();
+        while (added.hasNext() && !removedByMd5.isEmpty()) {
+            FileData newFile = added.next();
+            Deque<FileData> candidates = removedByMd5.get(newFile.md5);
+            if (candidates == null || candidates.isEmpty()) {
+                continue;
+            }
+            FileData oldFile = candidates.poll();
+            result.removed.remove(oldFile);
+            added.remove();
+            result.renamed.add(fileChange(oldFile, newFile));
+        }
+
+        if (result.added.isEmpty() && result.removed.isEmpty() && result.changed.isEmpty()
+                && result.renamed.isEmpty()) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * 记录文件在起始版本中的状态，只保留第一次出现时的状态，null 表示不存在
+     */
+    private static void remember(Map<String, FileData> first, String targetPath, @Nullable FileData file) {
+        if (!first.containsKey(targetPath)) {
+            first.put(targetPath, file);
+        }
+    }
+
+    private static ChangeData empty(String from, String to) {
+        ChangeData changes = new ChangeData();
+        changes.from = from;
+        changes.to = to;
+        changes.paths = new ArrayList<>();
+        return changes;
+    }
+
+    private static FileChangeData fileChange(FileData from, FileData to) {
+        FileChangeData change = new FileChangeData();
+        change.from = from;
+        change.to = to;
+        return change;
+    }
+
+    private static Map<String, PathData> byTarget(@Nullable List<PathData> paths) {
+        Map<String, PathData> result = new LinkedHashMap<>();
+        if (paths != null) {
+            for (PathData path : paths) {
+                // 同一目标路径出现多次时合并文件
+                PathData existing = result.get(path.targetPath);
+                if (existing == null) {
+                    result.put(path.targetPath, path);
+                } else {
+                    PathData merged = new PathData();
+                    merged.model = path.model;
+                    merged.targetPath = path.targetPath;
+                    merged.files = new ArrayList<>(list(existing.files));
+                    merged.files.addAll(list(path.files));
+                    result.put(path.targetPath, merged);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, FileData> filesByTarget(@Nullable PathData path) {
+        Map<String, FileData> result = new LinkedHashMap<>();
+        if (path != null) {
+            for (FileData file : list(path.files)) {
+                result.put(file.targetPath, file);
+            }
+        }
+        return result;
+    }
+
+    private static <T> List<T> list(@Nullable List<T> list) {
+        return list != null ? list : List.of();
+    }
+}
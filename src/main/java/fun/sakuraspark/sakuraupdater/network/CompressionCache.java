@@ -0,0 +1,148 @@
+package fun.sakuraspark.sakuraupdater.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+import fun.sakuraspark.sakuraupdater.utils.MD5;
+
+/**
+ * 预压缩文件缓存
+ * <p>
+ * 提交后按内容 MD5 在磁盘上生成 gzip 压缩版本，文件名为 {md5}.gz。
+ * 已经压缩过的格式直接跳过，其他文件压缩后体积没有明显减小的记录为 {md5}.raw，之后不再尝试。
+ * 由于以内容哈希为键，缓存永远不会过期，只需要清理不再被最新版本引用的文件。
+ * </p>
+ */
+public class CompressionCache {
+    private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(CompressionCache.class);
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String RAW_SUFFIX = ".raw";
+    // 压缩后大小与原大小之比超过该值时认为不值得压缩
+    private static final double MAX_RATIO = 0.9;
+    // 太小的文件压缩收益不足以抵消额外的头部
+    private static final long MIN_SIZE = 1024;
+    // 本身已经压缩的格式
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "jar", "zip", "gz", "xz", "7z", "rar", "zst", "bz2",
+            "png", "jpg", "jpeg", "gif", "webp", "ogg", "mp3", "mp4");
+
+    private final File dir;
+
+    public CompressionCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * 获取指定内容的 gzip 版本
+     * @return 不存在或不值得压缩时返回 null
+     */
+    @Nullable
+    public File getGzip(String md5) {
+        File file = new File(dir, md5 + GZIP_SUFFIX);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * 为最新版本的文件生成压缩版本，并清理不再使用的缓存
+     */
+    public void build(Collection<FileIndex.Entry> entries) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            LOGGER.error("Failed to create compression cache directory: {}", dir);
+            return;
+        }
+        Set<String> keep = new HashSet<>();
+        int compressed = 0;
+        for (FileIndex.Entry entry : entries) {
+            String md5 = entry.data.md5;
+            if (md5 == null || !keep.add(md5)) {
+                continue;
+            }
+            if (new File(dir, md5 + GZIP_SUFFIX).isFile() || new File(dir, md5 + RAW_SUFFIX).isFile()) {
+                continue;
+            }
+            // 内容在压缩时校验，这里不必先计算一次 MD5
+            if (!entry.file.isFile() || entry.size < MIN_SIZE || isCompressedType(entry.file.getName())) {
+                continue;
+            }
+            try {
+                if (compress(entry, md5)) {
+                    compressed++;
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to compress {}", entry.data.sourcePath, e);
+            }
+        }
+        prune(keep);
+        LOGGER.debug("Compression cache updated, {} new files compressed", compressed);
+    }
+
+    /**
+     * 压缩单个文件，压缩的同时计算 MD5，内容与提交时不一致的文件不会以该 MD5 保存
+     * @return 是否生成了压缩版本
+     */
+    private boolean compress(FileIndex.Entry entry, String md5) throws IOException {
+        File temp = new File(dir, md5 + GZIP_SUFFIX + ".tmp");
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        long size;
+        try (InputStream in = new DigestInputStream(Files.newInputStream(entry.path), md);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp.toPath()), 64 * 1024)) {
+            size = in.transferTo(out);
+        }
+        if (!md5.equals(MD5.toHex(md.digest()))) {
+            Files.delete(temp.toPath());
+            LOGGER.warn("File {} does not match the committed md5 {}, skip compression", entry.data.sourcePath, md5);
+            return false;
+        }
+        if (temp.length() > size * MAX_RATIO) {
+            Files.delete(temp.toPath());
+            Files.createFile(new File(dir, md5 + RAW_SUFFIX).toPath());
+            LOGGER.debug("Skip compression for {}, ratio too low", entry.data.sourcePath);
+            return false;
+        }
+        Files.move(temp.toPath(), new File(dir, md5 + GZIP_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * 删除不再被引用的缓存文件
+     */
+    private void prune(Set<String> keep) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int dot = name.indexOf('.');
+            if (dot > 0 && !keep.contains(name.substring(0, dot))) {
+                file.delete();
+            }
+        }
+    }
+
+    private static boolean isCompressedType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,232 @@
+package fun.sakuraspark.sakuraupdater.network;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * 下载流量控制
+ * <p>
+ * 限制同时进行的下载数量，并按全局和每个客户端 IP 两级令牌桶限制发送速率。
+ * 超出并发上限的请求直接拒绝（由调用方返回 503），而不是占住处理线程排队，
+ * 这样提交新版本后大量客户端同时更新时心跳等轻量请求仍能及时响应。
+ * </p>
+ * <p>
+ * 每个 IP 的令牌桶在两次下载之间保留，逐个文件下载的客户端不会每次都拿到新的突发额度；
+ * 令牌桶空闲到额度完全恢复后才移除，此时重新创建与保留并无区别。
+ * </p>
+ */
+public class DownloadGovernor {
+    // 限速时每次写出的最大字节数，越小速率越平滑
+    private static final int THROTTLE_CHUNK = 16 * 1024;
+
+    private final Semaphore downloads;
+    private final TokenBucket globalBucket;
+    private final long clientRate;
+    private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param maxDownloads 最大同时下载数，0 表示不限制
+     * @param globalRate 全局发送速率，字节/秒，0 表示不限制
+     * @param clientRate 每个客户端 IP 的发送速率，字节/秒，0 表示不限制
+     */
+    public DownloadGovernor(int maxDownloads, long globalRate, long clientRate) {
+        this.downloads = maxDownloads > 0 ? new Semaphore(maxDownloads) : null;
+        this.globalBucket = globalRate > 0 ? new TokenBucket(globalRate) : null;
+        this.clientRate = clientRate;
+    }
+
+    /**
+     * 尝试开始一次下载
+     * @param clientAddress 客户端 IP
+     * @return 下载许可，达到并发上限时返回 null
+     */
+    @Nullable
+    public Permit tryAcquire(String clientAddress) {
+        if (downloads != null && !downloads.tryAcquire()) {
+            return null;
+        }
+        sweep();
+        Client client = clients.compute(clientAddress, (key, value) -> {
+            Client c = value == null ? new Client(clientRate > 0 ? new TokenBucket(clientRate) : null) : value;
+            c.active++;
+            return c;
+        });
+        active.incrementAndGet();
+        return new Permit(clientAddress, client);
+    }
+
+    /**
+     * 当前进行中的下载数
+     */
+    public int getActiveDownloads() {
+        return active.get();
+    }
+
+    private void release(String clientAddress) {
+        long now = System.nanoTime();
+        clients.computeIfPresent(clientAddress, (key, value) -> --value.active == 0 && value.idle(now) ? null : value);
+        active.decrementAndGet();
+        if (downloads != null) {
+            downloads.release();
+        }
+    }
+
+    /**
+     * 移除没有进行中的下载、令牌桶也已恢复满额的客户端，避免记录无限增长；每个突发窗口最多执行一次
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        if (now - last < TokenBucket.BURST_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        for (String clientAddress : clients.keySet()) {
+            clients.computeIfPresent(clientAddress, (key, value) -> value.active == 0 && value.idle(now) ? null : value);
+        }
+    }
+
+    /**
+     * 单个客户端的状态，active 只在 ConcurrentHashMap.compute 中修改
+     */
+    private static final class Client {
+        private final TokenBucket bucket;
+        private int active;
+
+        private Client(@Nullable TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+
+        private boolean idle(long now) {
+            return bucket == null || bucket.idle(now);
+        }
+    }
+
+    /**
+     * 一次下载的许可，下载结束后必须关闭
+     */
+    public final class Permit implements AutoCloseable {
+        private final String clientAddress;
+        private final TokenBucket clientBucket;
+        private boolean closed = false;
+
+        private Permit(String clientAddress, Client client) {
+            this.clientAddress = clientAddress;
+            this.clientBucket = client.bucket;
+        }
+
+        /**
+         * 包装响应输出流，写出前按限速等待；没有配置限速时原样返回，不增加额外的拷贝
+         */
+        public OutputStream wrap(OutputStream out) {
+            if (globalBucket == null && clientBucket == null) {
+                return out;
+            }
+            return new ThrottledOutputStream(out, clientBucket);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(clientAddress);
+            }
+        }
+    }
+
+    /**
+     * 限速输出流，把写入拆成小块，每块先从客户端和全局令牌桶中取得额度
+     */
+    private final class ThrottledOutputStream extends FilterOutputStream {
+        private final TokenBucket clientBucket;
+
+        private ThrottledOutputStream(OutputStream out, @Nullable TokenBucket clientBucket) {
+            super(out);
+            this.clientBucket = clientBucket;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            throttle(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, THROTTLE_CHUNK);
+                throttle(n);
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void throttle(int bytes) throws IOException {
+            // 先满足单客户端限制再占用全局额度，避免慢客户端预占全局带宽
+            if (clientBucket != null) {
+                clientBucket.acquire(bytes);
+            }
+            if (globalBucket != null) {
+                globalBucket.acquire(bytes);
+            }
+        }
+    }
+
+    /**
+     * 令牌桶，允许最多一秒的突发流量
+     * <p>
+     * 以“下一次可用时间”记录状态：每次取用把该时间向后推移对应的时长，
+     * 调用方睡眠到自己的时间点再发送，多个线程按到达顺序公平分享速率。
+     * </p>
+     */
+    static final class TokenBucket {
+        static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+        private final long rate;
+        private long nextFree;
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.nextFree = System.nanoTime() - BURST_NANOS; // 初始即有一秒的额度
+        }
+
+        /**
+         * 额度是否已经完全恢复，即距离最后一次取用的额度耗尽已超过突发窗口
+         */
+        synchronized boolean idle(long now) {
+            return nextFree <= now - BURST_NANOS;
+        }
+
+        void acquire(int bytes) throws IOException {
+            long wait = reserve(bytes);
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttling");
+                }
+            }
+        }
+
+        private synchronized long reserve(int bytes) {
+            long now = System.nanoTime();
+            // 空闲期间积累的额度最多为一秒
+            if (nextFree < now - BURST_NANOS) {
+                nextFree = now - BURST_NANOS;
+            }
+            nextFree += bytes * 1_000_000_000L / rate;
+            return nextFree - now;
+        }
+    }
+}
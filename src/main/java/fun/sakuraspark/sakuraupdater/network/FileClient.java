@@ -1,57 +1,189 @@
 package fun.sakuraspark.sakuraupdater.network;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
 
 import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 import com.mojang.logging.LogUtils;
 
+import fun.sakuraspark.sakuraupdater.config.DataConfig.ChangeData;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.ChunkData;
 import fun.sakuraspark.sakuraupdater.config.DataConfig.Data;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.FileData;
+import fun.sakuraspark.sakuraupdater.utils.Chunker;
+import fun.sakuraspark.sakuraupdater.utils.Delta;
+import fun.sakuraspark.sakuraupdater.utils.MD5;
 
 public class FileClient {
     private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(FileClient.class);
+    // 下载中的临时文件后缀
+    public static final String PART_SUFFIX = ".part";
+    private static final String ETAG_SUFFIX = ".etag";
+    // 流式上传的分块大小
+    private static final int UPLOAD_CHUNK_SIZE = 64 * 1024;
+    // 服务端繁忙（503）时的最大重试次数和退避时间（毫秒）
+    private static final int BUSY_MAX_RETRIES = 8;
+    private static final long BUSY_BACKOFF_BASE = 1000;
+    private static final long BUSY_BACKOFF_MAX = 30000;
     private final String host;
     private final int port;
     private String baseUrl;
 
+    // 最新清单的本地缓存，为 null 时不缓存
+    @Nullable
+    private final File manifestCache;
+    @Nullable
+    private String cachedETag;
+    @Nullable
+    private Data cachedData;
+    // 服务端声明的能力，由心跳或握手响应更新
+    private volatile Set<String> capabilities = Set.of();
+    // 握手时得到的最新清单 ETag，只使用一次
+    @Nullable
+    private volatile String handshakeETag;
+
     public FileClient(String host, int port) {
+        this(host, port, null);
+    }
+
+    /**
+     * @param manifestCache 最新清单的本地缓存文件，ETag 保存在同名 .etag 文件中
+     */
+    public FileClient(String host, int port, @Nullable File manifestCache) {
         this.host = host;
         this.port = port;
         this.baseUrl = "http://" + host + ":" + port;
+        this.manifestCache = manifestCache;
+        if (manifestCache != null) {
+            File etagFile = new File(manifestCache.getPath() + ETAG_SUFFIX);
+            try {
+                if (manifestCache.isFile() && etagFile.isFile()) {
+                    cachedETag = Files.readString(etagFile.toPath(), StandardCharsets.UTF_8).trim();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to read cached update list ETag", e);
+            }
+        }
     }
 
     /**
      * 心跳检测
      */
     public boolean heartbeat() {
+        HttpURLConnection conn = null;
         try {
             URL url = new URL(baseUrl + "/heartbeat");
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn = (HttpURLConnection) url.openConnection();
             conn.setRequestMethod("POST");
             conn.setConnectTimeout(3000);
             if (conn.getResponseCode()==200) {
-                return true;   
+                updateCapabilities(conn.getHeaderField(FileServer.CAPABILITIES_HEADER));
             }
-            conn.disconnect();
+            discardBody(conn);
             return true;
         } catch (Exception e) {
+            abort(conn);
             return false;
         }
     }
     
+    /**
+     * 握手，一次请求完成心跳，并取得最新版本号、清单 ETag、服务端能力和版本之间的变化
+     * @param version 客户端当前版本
+     * @return 服务端不可达或不支持握手时返回 null，此时应改用 {@link #heartbeat()}
+     */
+    @Nullable
+    public Handshake handshake(@Nullable String version) {
+        HttpURLConnection conn = null;
+        try {
+            String query = version == null || version.isEmpty()
+                    ? ""
+                    : "?version=" + URLEncoder.encode(version, StandardCharsets.UTF_8);
+            URL url = new URL(baseUrl + "/handshake" + query);
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(3000);
+            int code = conn.getResponseCode();
+            if (code != 200) {
+                discardBody(conn);
+                LOGGER.debug("Handshake not supported by server: HTTP {}", code);
+                return null;
+            }
+            Handshake handshake;
+            try (InputStream is = conn.getInputStream()) {
+                handshake = new Gson().fromJson(readInputStream(is), Handshake.class);
+            }
+            if (handshake == null) {
+                return null;
+            }
+            updateCapabilities(handshake.capabilities == null ? null : String.join(",", handshake.capabilities));
+            handshakeETag = handshake.etag;
+            return handshake;
+        } catch (Exception e) {
+            abort(conn);
+            LOGGER.debug("Handshake failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * 记录服务端声明的能力
+     */
+    private void updateCapabilities(@Nullable String header) {
+        Set<String> result = new HashSet<>();
+        if (header != null) {
+            for (String capability : header.split(",")) {
+                if (!capability.isBlank()) {
+                    result.add(capability.trim());
+                }
+            }
+        }
+        capabilities = result;
+    }
+
+    /**
+     * 服务端是否声明了指定能力，需要先调用 {@link #heartbeat()} 或 {@link #handshake(String)}
+     */
+    public boolean hasCapability(String capability) {
+        return capabilities.contains(capability);
+    }
+
     /**
      * 获取可用文件列表
      */
@@ -61,17 +193,102 @@ public class FileClient {
     
     /**
      * 获取指定版本的更新列表
+     * <p>获取最新版本时，若服务端返回 304 则直接使用本地缓存的清单</p>
      */
     @Nullable
     public Data getUpdateList(String version) {
+        boolean latest = version == null || version.isEmpty();
+        String etag = handshakeETag;
+        handshakeETag = null;
+        // 刚刚握手得到的 ETag 与本地缓存一致，清单没有变化，不需要再请求
+        if (latest && etag != null && etag.equals(cachedETag) && manifestCache != null && manifestCache.isFile()) {
+            Data cached = loadCachedManifest();
+            if (cached != null) {
+                LOGGER.debug("Update list unchanged since handshake, using cached manifest");
+                return cached;
+            }
+        }
+        ManifestResponse response = requestManifest(version, latest && manifestCache != null);
+        if (response == null) {
+            return null;
+        }
+        if (response.status == 304) {
+            return loadCachedManifest();
+        }
+        Data data = parseManifest(response.body);
+        if (data != null) {
+            LOGGER.debug("get update list for version: {}", version);
+            if (latest) {
+                saveCachedManifest(response.body, response.etag, data);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * 获取服务端最新版本号
+     * <p>本地缓存的清单仍然有效时，版本号直接从 ETag 中取得，不需要下载和解析清单</p>
+     */
+    @Nullable
+    public String getLatestVersion() {
+        if (manifestCache == null) {
+            Data data = getUpdateList();
+            return data == null ? null : data.version;
+        }
+        ManifestResponse response = requestManifest(null, true);
+        if (response == null) {
+            return null;
+        }
+        if (response.status == 304) {
+            String version = ManifestCache.versionFromETag(cachedETag);
+            if (version == null) {
+                Data data = loadCachedManifest();
+                return data == null ? null : data.version;
+            }
+            return version;
+        }
+        Data data = parseManifest(response.body);
+        if (data == null) {
+            return null;
+        }
+        saveCachedManifest(response.body, response.etag, data);
+        return data.version;
+    }
+
+    /**
+     * 清单请求结果
+     */
+    private static final class ManifestResponse {
+        private final int status;
+        private final String body; // 304 时为 null
+        private final String etag;
+
+        private ManifestResponse(int status, String body, String etag) {
+            this.status = status;
+            this.body = body;
+            this.etag = etag;
+        }
+    }
+
+    /**
+     * 请求 /updateList
+     * @param conditional 是否携带本地缓存的 ETag
+     * @return 200 或 304 的结果，失败返回 null
+     */
+    @Nullable
+    private ManifestResponse requestManifest(@Nullable String version, boolean conditional) {
         HttpURLConnection conn = null;
         try {
             URL url = new URL(baseUrl + "/updateList");
             conn = (HttpURLConnection) url.openConnection();
             conn.setRequestMethod("POST");
             conn.setRequestProperty("Content-Type", "application/json;charset=utf-8");
+            conn.setRequestProperty("Accept-Encoding", "gzip");
             conn.setDoOutput(true);
             conn.setConnectTimeout(10000);
+            if (conditional && cachedETag != null && manifestCache.isFile()) {
+                conn.setRequestProperty("If-None-Match", cachedETag);
+            }
             
             // 构建请求JSON
             JsonObject requestJson = new JsonObject();
@@ -84,28 +301,113 @@ public class FileClient {
                 os.write(requestBody.getBytes(StandardCharsets.UTF_8));
             }
             
-            if (conn.getResponseCode() == 200) {
-                String response = readInputStream(conn.getInputStream());
-                Gson gson = new Gson();
-                try {
-                    Data data = gson.fromJson(response, Data.class);
-                    LOGGER.debug("get update list for version: {}", version);
-                    return data;
-                } catch (JsonSyntaxException e) {
-                    LOGGER.error("Cannot parse update list JSON", e);
-                    return null;
+            int code = conn.getResponseCode();
+            if (code == 304 && conditional) {
+                discardBody(conn);
+                LOGGER.debug("Update list not modified, using cached manifest");
+                return new ManifestResponse(304, null, cachedETag);
+            } else if (code == 200) {
+                InputStream body = conn.getInputStream();
+                if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+                    body = new GZIPInputStream(body);
+                }
+                try (InputStream is = body) {
+                    return new ManifestResponse(200, readInputStream(is), conn.getHeaderField("ETag"));
                 }
             } else {
-                LOGGER.error("Failed to get update list: HTTP {}", conn.getResponseCode());
+                discardBody(conn);
+                LOGGER.error("Failed to get update list: HTTP {}", code);
                 return null;
             }
         } catch (Exception e) {
+            abort(conn);
             LOGGER.error("Failed to get update list", e);
             return null;
-        } finally {
-            if (conn != null) {
-                conn.disconnect();
+        }
+    }
+
+    /**
+     * 获取从 from 更新到 to 的变化，需要服务端声明 changes 能力
+     * @return 版本不存在或请求失败时返回 null
+     */
+    @Nullable
+    public ChangeData getChanges(String from, String to) {
+        HttpURLConnection conn = null;
+        try {
+            URL url = new URL(baseUrl + "/changes?from=" + URLEncoder.encode(from, StandardCharsets.UTF_8)
+                    + "&to=" + URLEncoder.encode(to, StandardCharsets.UTF_8));
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            conn.setConnectTimeout(10000);
+            int code = conn.getResponseCode();
+            if (code != 200) {
+                discardBody(conn);
+                LOGGER.warn("Failed to get changes from {} to {}: HTTP {}", from, to, code);
+                return null;
+            }
+            InputStream body = conn.getInputStream();
+            if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+                body = new GZIPInputStream(body);
             }
+            try (InputStream is = body) {
+                return new Gson().fromJson(readInputStream(is), ChangeData.class);
+            }
+        } catch (Exception e) {
+            abort(conn);
+            LOGGER.error("Failed to get changes from {} to {}", from, to, e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Data parseManifest(String json) {
+        try {
+            return new Gson().fromJson(json, Data.class);
+        } catch (JsonSyntaxException e) {
+            LOGGER.error("Cannot parse update list JSON", e);
+            return null;
+        }
+    }
+
+    /**
+     * 读取本地缓存的清单，已解析过则直接返回
+     */
+    @Nullable
+    private Data loadCachedManifest() {
+        if (cachedData != null) {
+            return cachedData;
+        }
+        try {
+            cachedData = parseManifest(Files.readString(manifestCache.toPath(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOGGER.error("Failed to read cached update list", e);
+        }
+        return cachedData;
+    }
+
+    /**
+     * 保存最新清单及其 ETag 到本地
+     */
+    private void saveCachedManifest(String json, @Nullable String etag, Data data) {
+        if (manifestCache == null) {
+            return;
+        }
+        cachedData = data;
+        cachedETag = etag;
+        File etagFile = new File(manifestCache.getPath() + ETAG_SUFFIX);
+        try {
+            if (manifestCache.getParentFile() != null) {
+                manifestCache.getParentFile().mkdirs();
+            }
+            if (etag == null) {
+                Files.deleteIfExists(etagFile.toPath());
+                return;
+            }
+            Files.writeString(manifestCache.toPath(), json, StandardCharsets.UTF_8);
+            Files.writeString(etagFile.toPath(), etag, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save update list cache", e);
+            cachedETag = null;
         }
     }
     
@@ -113,118 +415,700 @@ public class FileClient {
      * 下载文件
      */
     public boolean downloadFile(String fileName, String saveDirectory) {
+        return downloadFile(fileName, saveDirectory, null);
+    }
+
+    /**
+     * 下载文件，先写入 .part 临时文件，中断后再次调用会从已下载的位置继续
+     * @param md5 文件期望的 MD5，不为 null 时用于 If-Range 以及下载完成后的校验
+     */
+    public boolean downloadFile(String fileName, String saveDirectory, @Nullable String md5) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return downloadFileOnce(fileName, saveDirectory, md5);
+            } catch (ServerBusyException e) {
+                if (!waitForRetry(e, attempt, fileName)) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * 只尝试一次下载，服务端繁忙时不等待重试，直接返回 false，用于可以换用其他来源的场合
+     */
+    public boolean tryDownloadFile(String fileName, String saveDirectory, @Nullable String md5) {
+        try {
+            return downloadFileOnce(fileName, saveDirectory, md5);
+        } catch (ServerBusyException e) {
+            LOGGER.debug("{} is busy, skip {}", baseUrl, fileName);
+            return false;
+        }
+    }
+
+    private boolean downloadFileOnce(String fileName, String saveDirectory, @Nullable String md5)
+            throws ServerBusyException {
+        HttpURLConnection conn = null;
+        File saveFile = new File(saveDirectory);
+        File partFile = new File(saveDirectory + PART_SUFFIX);
+        File validatorFile = new File(partFile.getPath() + ETAG_SUFFIX);
+        try {
+            // 服务端支持时优先使用可被中间缓存的 /blob/{md5}
+            boolean useBlob = md5 != null && hasCapability(FileServer.CAPABILITY_BLOB);
+            URL url = new URL(baseUrl + (useBlob ? "/blob/" + md5 : "/file"));
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod(useBlob ? "GET" : "POST");
+            conn.setConnectTimeout(120000);
+
+            // 已有部分数据时请求剩余部分，If-Range 使用 .part 下载时的 ETag，保证服务端文件未变化
+            long existing = partFile.isFile() ? partFile.length() : 0;
+            String validator = existing > 0 ? readPartValidator(validatorFile) : null;
+            if (existing > 0 && (validator == null || md5 != null && !validator.equals("\"" + md5 + "\""))) {
+                // 不知道来源或属于其他版本的 .part 无法续传
+                LOGGER.debug("Discard stale partial file of {}", fileName);
+                partFile.delete();
+                existing = 0;
+            }
+            if (existing > 0) {
+                conn.setRequestProperty("Range", "bytes=" + existing + "-");
+                conn.setRequestProperty("If-Range", validator);
+            } else {
+                // 从头下载时接受压缩版本，.part 中保存的始终是解压后的内容
+                conn.setRequestProperty("Accept-Encoding", "gzip");
+            }
+            
+            if (!useBlob) {
+                // 构建请求JSON
+                JsonObject requestJson = new JsonObject();
+                requestJson.addProperty("file", fileName);
+
+                conn.setRequestProperty("Content-Type", "application/json;charset=utf-8");
+                conn.setDoOutput(true);
+                String requestBody = new Gson().toJson(requestJson);
+                try (OutputStream os = conn.getOutputStream()) {
+                    os.write(requestBody.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            
+            int code = conn.getResponseCode();
+            checkBusy(conn);
+            boolean append;
+            if (code == 206 && existing > 0 && isContentRangeFrom(conn.getHeaderField("Content-Range"), existing)) {
+                append = true;
+                LOGGER.debug("Resume download {} from {} bytes", fileName, existing);
+            } else if (code == 200) {
+                append = false;
+            } else if (code == 416 && existing > 0) {
+                // .part 已经是完整文件，直接校验
+                discardBody(conn);
+                return finishDownload(fileName, partFile, saveFile, md5);
+            } else {
+                discardBody(conn);
+                LOGGER.error("Download failed: HTTP {}", code);
+                return false;
+            }
+
+            if (partFile.getParentFile() != null && !partFile.getParentFile().exists()) {
+                partFile.getParentFile().mkdirs();
+            }
+
+            boolean gzip = "gzip".equalsIgnoreCase(conn.getContentEncoding());
+            if (!append) {
+                writePartValidator(validatorFile, conn.getHeaderField("ETag"), gzip, md5);
+            }
+            InputStream body = conn.getInputStream();
+            if (gzip) {
+                body = new GZIPInputStream(body, 64 * 1024);
+            }
+            try (InputStream is = body;
+                 FileOutputStream fos = new FileOutputStream(partFile, append)) {
+                byte[] buffer = new byte[8192];
+                int bytesRead;
+                while ((bytesRead = is.read(buffer)) != -1) {
+                    fos.write(buffer, 0, bytesRead);
+                }
+            }
+
+            return finishDownload(fileName, partFile, saveFile, md5);
+        } catch (ServerBusyException e) {
+            throw e;
+        } catch (Exception e) {
+            abort(conn);
+            LOGGER.error("Download failed: {}", fileName, e);
+            return false;
+        }
+    }
+
+    /**
+     * 下载差分补丁并应用到本地的旧文件，生成的新文件经过 MD5 校验后替换旧文件
+     * @param localMd5 本地旧文件的 MD5
+     * @param md5 新文件的 MD5
+     * @param saveDirectory 本地文件路径，同时是补丁的基础文件
+     * @return 是否成功，补丁不存在或应用失败时返回 false，调用方应回退到完整下载
+     */
+    public boolean downloadPatch(String localMd5, String md5, String saveDirectory) {
+        HttpURLConnection conn = null;
+        File saveFile = new File(saveDirectory);
+        File partFile = new File(saveDirectory + PART_SUFFIX);
+        try {
+            URL url = new URL(baseUrl + "/patch/" + localMd5 + "/" + md5);
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("GET");
+            conn.setConnectTimeout(120000);
+
+            int code = conn.getResponseCode();
+            if (code != 200) {
+                discardBody(conn);
+                LOGGER.debug("No patch for {} ({} -> {}): HTTP {}", saveDirectory, localMd5, md5, code);
+                return false;
+            }
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            long size;
+            try (InputStream body = conn.getInputStream();
+                 OutputStream out = new DigestOutputStream(new BufferedOutputStream(
+                         new FileOutputStream(partFile), 64 * 1024), md)) {
+                size = Delta.patch(saveFile, body, out);
+            }
+            if (!md5.equals(MD5.toHex(md.digest()))) {
+                LOGGER.error("Patch failed: {} md5 not match, falling back to full download", saveDirectory);
+                partFile.delete();
+                return false;
+            }
+            moveIntoPlace(partFile, saveFile);
+            LOGGER.debug("Patch success: {} ({} bytes)", saveDirectory, size);
+            return true;
+        } catch (Exception e) {
+            abort(conn);
+            partFile.delete();
+            LOGGER.warn("Patch failed: {}, falling back to full download", saveDirectory, e);
+            return false;
+        }
+    }
+
+    /**
+     * 原样下载服务端的指定路径，先写入 .part 再替换到目标位置，不做内容校验
+     * @param path 请求路径，例如 /patch/{旧md5}/{新md5}
+     * @return 是否成功，服务端返回 200 以外的状态时返回 false
+     */
+    public boolean downloadTo(String path, File saveFile) {
+        HttpURLConnection conn = null;
+        File partFile = new File(saveFile.getPath() + PART_SUFFIX);
+        try {
+            URL url = new URL(baseUrl + path);
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("GET");
+            conn.setConnectTimeout(120000);
+            int code = conn.getResponseCode();
+            if (code != 200) {
+                discardBody(conn);
+                LOGGER.debug("Download {} failed: HTTP {}", path, code);
+                return false;
+            }
+            try (InputStream is = conn.getInputStream()) {
+                Files.copy(is, partFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            moveIntoPlace(partFile, saveFile);
+            return true;
+        } catch (Exception e) {
+            abort(conn);
+            partFile.delete();
+            LOGGER.warn("Download {} failed", path, e);
+            return false;
+        }
+    }
+
+    /**
+     * 按块更新大文件：本地旧文件中已有的块直接复制，只从服务端下载缺少的块
+     * @param fileData 带有块列表的新文件信息
+     * @param saveDirectory 本地文件路径，同时是复用块的来源
+     * @return 是否成功，失败时调用方应回退到其他下载方式
+     */
+    public boolean downloadChunked(FileData fileData, String saveDirectory) {
+        File saveFile = new File(saveDirectory);
+        File partFile = new File(saveDirectory + PART_SUFFIX);
+        try {
+            // 用与服务端相同的参数切分本地文件，按块MD5索引
+            Map<String, ChunkData> localChunks = new HashMap<>();
+            if (saveFile.isFile()) {
+                for (ChunkData chunk : Chunker.chunk(saveFile, null)) {
+                    localChunks.putIfAbsent(chunk.md5, chunk);
+                }
+            }
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            long reused = 0;
+            long downloaded = 0;
+            boolean complete = true;
+            try (RandomAccessFile local = saveFile.isFile() ? new RandomAccessFile(saveFile, "r") : null;
+                 OutputStream out = new DigestOutputStream(new BufferedOutputStream(
+                         new FileOutputStream(partFile), 64 * 1024), md)) {
+                for (ChunkData chunk : fileData.chunks) {
+                    byte[] data;
+                    ChunkData localChunk = localChunks.get(chunk.md5);
+                    if (local != null && localChunk != null && localChunk.size == chunk.size) {
+                        data = new byte[chunk.size];
+                        local.seek(localChunk.offset);
+                        local.readFully(data);
+                        reused += chunk.size;
+                    } else {
+                        data = fetchChunk(chunk);
+                        if (data == null) {
+                            complete = false;
+                            break;
+                        }
+                        downloaded += chunk.size;
+                    }
+                    out.write(data);
+                }
+            }
+            // 输出流关闭后才能删除临时文件
+            if (!complete) {
+                partFile.delete();
+                return false;
+            }
+            if (!fileData.md5.equals(MD5.toHex(md.digest()))) {
+                LOGGER.error("Chunked download failed: {} md5 not match, falling back to full download",
+                        saveDirectory);
+                partFile.delete();
+                return false;
+            }
+            moveIntoPlace(partFile, saveFile);
+            LOGGER.debug("Chunked download success: {} ({} bytes reused, {} bytes downloaded)", saveDirectory,
+                    reused, downloaded);
+            return true;
+        } catch (Exception e) {
+            partFile.delete();
+            LOGGER.warn("Chunked download failed: {}, falling back to full download", saveDirectory, e);
+            return false;
+        }
+    }
+
+    /**
+     * 下载单个块并校验MD5
+     * @return 块内容，失败时返回 null
+     */
+    @Nullable
+    private byte[] fetchChunk(ChunkData chunk) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            HttpURLConnection conn = null;
+            try {
+                URL url = new URL(baseUrl + "/chunk/" + chunk.md5);
+                conn = (HttpURLConnection) url.openConnection();
+                conn.setRequestMethod("GET");
+                conn.setConnectTimeout(120000);
+                checkBusy(conn);
+                int code = conn.getResponseCode();
+                if (code != 200) {
+                    discardBody(conn);
+                    LOGGER.debug("Chunk {} not available: HTTP {}", chunk.md5, code);
+                    return null;
+                }
+                byte[] data;
+                try (InputStream is = conn.getInputStream()) {
+                    data = is.readNBytes(chunk.size);
+                    // 读到结尾，连接才能放回连接池
+                    if (data.length != chunk.size || is.read() != -1) {
+                        throw new EOFException("Chunk " + chunk.md5 + " has unexpected size");
+                    }
+                }
+                if (!chunk.md5.equals(MD5.calculateMD5(data))) {
+                    LOGGER.error("Chunk {} md5 not match", chunk.md5);
+                    return null;
+                }
+                return data;
+            } catch (ServerBusyException e) {
+                if (!waitForRetry(e, attempt, "chunk " + chunk.md5)) {
+                    return null;
+                }
+            } catch (IOException e) {
+                abort(conn);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 读取 .part 下载时服务端返回的 ETag，没有记录时返回 null
+     */
+    @Nullable
+    private static String readPartValidator(File validatorFile) {
+        try {
+            if (validatorFile.isFile()) {
+                String validator = Files.readString(validatorFile.toPath(), StandardCharsets.UTF_8).trim();
+                return validator.isEmpty() ? null : validator;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read partial download ETag: {}", validatorFile, e);
+        }
+        return null;
+    }
+
+    /**
+     * 开始写入新的 .part 前记录它的 ETag，之后续传时用于 If-Range
+     * <p>
+     * .part 中保存的是解压后的内容，压缩版本的 ETag 换成原文件的 ETag；
+     * 服务端没有返回 ETag 时使用期望的 MD5，两者都没有时不记录，下次从头下载。
+     * </p>
+     */
+    private static void writePartValidator(File validatorFile, @Nullable String etag, boolean gzip,
+            @Nullable String md5) throws IOException {
+        if (etag != null && gzip) {
+            etag = etag.endsWith(FileServer.GZIP_ETAG_SUFFIX + "\"")
+                    ? etag.substring(0, etag.length() - FileServer.GZIP_ETAG_SUFFIX.length() - 1) + "\""
+                    : null;
+        }
+        if (etag == null && md5 != null) {
+            etag = "\"" + md5 + "\"";
+        }
+        // 弱 ETag 不能用于 If-Range
+        if (etag == null || etag.startsWith("W/")) {
+            validatorFile.delete();
+            return;
+        }
+        if (validatorFile.getParentFile() != null && !validatorFile.getParentFile().exists()) {
+            validatorFile.getParentFile().mkdirs();
+        }
+        Files.writeString(validatorFile.toPath(), etag, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 下载中的临时文件（.part 及其 ETag 记录）对应的目标路径，不是临时文件时返回 null
+     */
+    @Nullable
+    public static String partTarget(String path) {
+        if (path.endsWith(PART_SUFFIX)) {
+            return path.substring(0, path.length() - PART_SUFFIX.length());
+        }
+        if (path.endsWith(PART_SUFFIX + ETAG_SUFFIX)) {
+            return path.substring(0, path.length() - PART_SUFFIX.length() - ETAG_SUFFIX.length());
+        }
+        return null;
+    }
+
+    /**
+     * 校验 .part 文件并替换到目标位置，校验失败会删除 .part 以便下次从头下载
+     */
+    private boolean finishDownload(String fileName, File partFile, File saveFile, @Nullable String md5)
+            throws IOException {
+        File validatorFile = new File(partFile.getPath() + ETAG_SUFFIX);
+        if (md5 != null && !md5.equals(MD5.calculateMD5(partFile))) {
+            LOGGER.error("Download failed: {} md5 not match, discard partial file", fileName);
+            partFile.delete();
+            validatorFile.delete();
+            return false;
+        }
+        moveIntoPlace(partFile, saveFile);
+        validatorFile.delete();
+        LOGGER.debug("Download success: {}", fileName);
+        return true;
+    }
+
+    /**
+     * 用下载完成的临时文件替换目标文件
+     */
+    private static void moveIntoPlace(File partFile, File saveFile) throws IOException {
+        try {
+            Files.move(partFile.toPath(), saveFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile.toPath(), saveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 批量下载小文件，所有文件在一个请求中返回，边接收边校验 MD5 并直接写入目标路径
+     * @param files 需要下载的文件，数量不能超过 {@link FileServer#MAX_BATCH_FILES}
+     * @param onSuccess 每个文件下载并校验成功后调用
+     * @return 下载失败的文件
+     */
+    public List<FileData> downloadBatch(List<FileData> files, Consumer<FileData> onSuccess) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return downloadBatchOnce(files, onSuccess);
+            } catch (ServerBusyException e) {
+                if (!waitForRetry(e, attempt, "batch of " + files.size() + " files")) {
+                    return new ArrayList<>(files);
+                }
+            }
+        }
+    }
+
+    private List<FileData> downloadBatchOnce(List<FileData> files, Consumer<FileData> onSuccess)
+            throws ServerBusyException {
+        List<FileData> failed = new ArrayList<>(files);
         HttpURLConnection conn = null;
         try {
-            URL url = new URL(baseUrl + "/file");
+            URL url = new URL(baseUrl + "/batch");
             conn = (HttpURLConnection) url.openConnection();
             conn.setRequestMethod("POST");
             conn.setRequestProperty("Content-Type", "application/json;charset=utf-8");
             conn.setDoOutput(true);
             conn.setConnectTimeout(120000);
-            
-            // 构建请求JSON
+
             JsonObject requestJson = new JsonObject();
-            requestJson.addProperty("file", fileName);
-            
-            String requestBody = new Gson().toJson(requestJson);
+            JsonArray fileArray = new JsonArray();
+            files.forEach(fileData -> fileArray.add(fileData.sourcePath));
+            requestJson.add("files", fileArray);
             try (OutputStream os = conn.getOutputStream()) {
-                os.write(requestBody.getBytes(StandardCharsets.UTF_8));
+                os.write(new Gson().toJson(requestJson).getBytes(StandardCharsets.UTF_8));
             }
-            
-            if (conn.getResponseCode() == 200) {
-                File saveFile = new File(saveDirectory);
-                if (saveFile.getParentFile() != null && !saveFile.getParentFile().exists()) {
-                    saveFile.getParentFile().mkdirs();
-                }
-                
-                if (saveFile.exists()) {
-                    saveFile.delete();
-                }
-                
-                try (InputStream is = conn.getInputStream();
-                     FileOutputStream fos = new FileOutputStream(saveFile)) {
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    while ((bytesRead = is.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
+
+            checkBusy(conn);
+            if (conn.getResponseCode() != 200) {
+                discardBody(conn);
+                LOGGER.error("Batch download failed: HTTP {}", conn.getResponseCode());
+                return failed;
+            }
+
+            byte[] buffer = new byte[8192];
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream(), 64 * 1024))) {
+                for (FileData fileData : files) {
+                    String name = in.readUTF();
+                    long length = in.readLong();
+                    if (!name.equals(fileData.sourcePath)) {
+                        throw new IOException("Unexpected batch entry " + name + ", expected " + fileData.sourcePath);
+                    }
+                    if (length < 0) {
+                        LOGGER.error("Batch download failed: {} not available on server", name);
+                        continue;
+                    }
+
+                    File saveFile = new File(fileData.targetPath);
+                    File partFile = new File(fileData.targetPath + PART_SUFFIX);
+                    if (partFile.getParentFile() != null && !partFile.getParentFile().exists()) {
+                        partFile.getParentFile().mkdirs();
+                    }
+                    MessageDigest md = MessageDigest.getInstance("MD5");
+                    try (OutputStream fos = new DigestOutputStream(new FileOutputStream(partFile), md)) {
+                        long remaining = length;
+                        while (remaining > 0) {
+                            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (n < 0) {
+                                throw new EOFException("Batch stream ended inside " + name);
+                            }
+                            fos.write(buffer, 0, n);
+                            remaining -= n;
+                        }
+                    }
+                    if (fileData.md5 != null && !fileData.md5.equals(MD5.toHex(md.digest()))) {
+                        LOGGER.error("Batch download failed: {} md5 not match", name);
+                        partFile.delete();
+                        continue;
                     }
+                    moveIntoPlace(partFile, saveFile);
+                    failed.remove(fileData);
+                    onSuccess.accept(fileData);
                 }
-                
-                LOGGER.debug("Download success: {}", fileName);
-                return true;
-            } else {
-                LOGGER.error("Download failed: HTTP {}", conn.getResponseCode());
-                return false;
             }
+            LOGGER.debug("Batch download finished: {}/{} files", files.size() - failed.size(), files.size());
+        } catch (ServerBusyException e) {
+            throw e;
         } catch (Exception e) {
-            LOGGER.error("Download failed: {}", fileName, e);
-            return false;
-        } finally {
-            if (conn != null) {
-                conn.disconnect();
+            abort(conn);
+            LOGGER.error("Batch download failed", e);
+        }
+        return failed;
+    }
+
+    /**
+     * 服务端下载数已满，返回 503
+     */
+    private static final class ServerBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final long retryAfterMillis;
+
+        private ServerBusyException(long retryAfterMillis) {
+            super("Server busy");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    /**
+     * 响应为 503 时抛出 {@link ServerBusyException}，携带 Retry-After 指定的等待时间
+     */
+    private static void checkBusy(HttpURLConnection conn) throws IOException {
+        if (conn.getResponseCode() != 503) {
+            return;
+        }
+        discardBody(conn);
+        long retryAfter = 0;
+        String header = conn.getHeaderField("Retry-After");
+        if (header != null) {
+            try {
+                retryAfter = Long.parseLong(header.trim()) * 1000;
+            } catch (NumberFormatException ignored) {
+                // 不支持 HTTP 日期格式，按指数退避等待
             }
         }
+        throw new ServerBusyException(retryAfter);
+    }
+
+    /**
+     * 服务端繁忙时等待后重试，等待时间取 Retry-After 与指数退避中的较大值，并加上随机抖动
+     * @return 是否应该继续重试
+     */
+    private static boolean waitForRetry(ServerBusyException e, int attempt, String what) {
+        if (attempt >= BUSY_MAX_RETRIES) {
+            LOGGER.error("Download failed: server still busy after {} retries: {}", attempt, what);
+            return false;
+        }
+        long backoff = Math.min(BUSY_BACKOFF_MAX, BUSY_BACKOFF_BASE << attempt);
+        long delay = Math.max(e.retryAfterMillis, backoff) + ThreadLocalRandom.current().nextLong(BUSY_BACKOFF_BASE);
+        LOGGER.info("Server busy, retry {} in {} ms", what, delay);
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 判断 Content-Range 是否从指定位置开始
+     */
+    private static boolean isContentRangeFrom(@Nullable String contentRange, long start) {
+        return contentRange != null && contentRange.trim().startsWith("bytes " + start + "-");
     }
     
     /**
-     * 上传文件
+     * 上传文件，服务端支持时以分块流的方式发送，内存占用与文件大小无关；
+     * 不支持的旧服务端使用 JSON 的 /upload
      */
     public boolean uploadFile(String fileName, String fileSourcePath) {
+        if (capabilities.isEmpty()) {
+            heartbeat();
+        }
+        if (hasCapability(FileServer.CAPABILITY_STREAM_UPLOAD)) {
+            Boolean result = uploadFileStream(fileName, fileSourcePath);
+            if (result != null) {
+                return result;
+            }
+            LOGGER.debug("{} does not support streamed uploads, fall back to /upload", baseUrl);
+        }
+        return uploadFileJson(fileName, fileSourcePath);
+    }
+
+    /**
+     * 以分块流的方式上传文件
+     * @return 服务端返回 404 时返回 null
+     */
+    @Nullable
+    private Boolean uploadFileStream(String fileName, String fileSourcePath) {
         HttpURLConnection conn = null;
         try {
-            URL url = new URL(baseUrl + "/upload");
+            URL url = new URL(baseUrl + "/upload/stream");
             conn = (HttpURLConnection) url.openConnection();
             conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json;charset=utf-8");
+            conn.setRequestProperty("Content-Type", "application/octet-stream");
+            conn.setRequestProperty(FileServer.UPLOAD_FILE_HEADER, URLEncoder.encode(fileName, StandardCharsets.UTF_8));
             conn.setDoOutput(true);
+            // 分块格式的总长度可以预先算出，使用固定长度而不是 chunked 编码，nio 引擎不接受 chunked 请求体
+            long fileSize = new File(fileSourcePath).length();
+            long frames = (fileSize + UPLOAD_CHUNK_SIZE - 1) / UPLOAD_CHUNK_SIZE;
+            conn.setFixedLengthStreamingMode(fileSize + frames * (Integer.BYTES + Long.BYTES) + Integer.BYTES);
             conn.setConnectTimeout(120000);
             
-            // 读取文件内容并进行Base64编码
-            File sourceFile = new File(fileSourcePath);
-            byte[] fileContent = new byte[(int) sourceFile.length()];
-            try (FileInputStream fis = new FileInputStream(sourceFile)) {
-                fis.read(fileContent);
+            // 每块为 长度 + 内容 + CRC32，长度为 0 表示结束
+            byte[] buffer = new byte[UPLOAD_CHUNK_SIZE];
+            CRC32 crc = new CRC32();
+            try (InputStream fis = new FileInputStream(fileSourcePath);
+                 DataOutputStream out = new DataOutputStream(conn.getOutputStream())) {
+                int bytesRead;
+                while ((bytesRead = fis.readNBytes(buffer, 0, buffer.length)) > 0) {
+                    crc.reset();
+                    crc.update(buffer, 0, bytesRead);
+                    out.writeInt(bytesRead);
+                    out.write(buffer, 0, bytesRead);
+                    out.writeLong(crc.getValue());
+                }
+                out.writeInt(0);
             }
-            String encodedContent = java.util.Base64.getEncoder().encodeToString(fileContent);
             
-            // 构建请求JSON
+            int code = conn.getResponseCode();
+            discardBody(conn);
+            if (code == 200) {
+                LOGGER.debug("File upload success: {}", fileName);
+                return true;
+            } else if (code == 404) {
+                return null;
+            } else {
+                LOGGER.error("File upload failed: HTTP {}", code);
+                return false;
+            }
+        } catch (Exception e) {
+            abort(conn);
+            LOGGER.error("File upload failed: {}", fileName, e);
+            return false;
+        }
+    }
+
+    /**
+     * 以 JSON 上传文件，内容使用 Base64 编码，整个文件需要读入内存
+     */
+    private boolean uploadFileJson(String fileName, String fileSourcePath) {
+        HttpURLConnection conn = null;
+        try {
+            URL url = new URL(baseUrl + "/upload");
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/json;charset=utf-8");
+            conn.setDoOutput(true);
+            conn.setConnectTimeout(120000);
+
             JsonObject requestJson = new JsonObject();
             requestJson.addProperty("file", fileName);
-            requestJson.addProperty("content", encodedContent);
-            
-            String requestBody = new Gson().toJson(requestJson);
+            requestJson.addProperty("content",
+                    Base64.getEncoder().encodeToString(Files.readAllBytes(new File(fileSourcePath).toPath())));
+            byte[] requestBody = new Gson().toJson(requestJson).getBytes(StandardCharsets.UTF_8);
+            conn.setFixedLengthStreamingMode(requestBody.length);
             try (OutputStream os = conn.getOutputStream()) {
-                os.write(requestBody.getBytes(StandardCharsets.UTF_8));
+                os.write(requestBody);
             }
-            
-            if (conn.getResponseCode() == 200) {
-                String response = readInputStream(conn.getInputStream());
+
+            int code = conn.getResponseCode();
+            discardBody(conn);
+            if (code == 200) {
                 LOGGER.debug("File upload success: {}", fileName);
                 return true;
             } else {
-                LOGGER.error("File upload failed: HTTP {}", conn.getResponseCode());
+                LOGGER.error("File upload failed: HTTP {}", code);
                 return false;
             }
         } catch (Exception e) {
+            abort(conn);
             LOGGER.error("File upload failed: {}", fileName, e);
             return false;
-        } finally {
-            if (conn != null) {
-                conn.disconnect();
-            }
         }
     }
     
+    /**
+     * 读完并关闭响应体，连接会回到 JDK 的 keep-alive 连接池，后续请求复用同一个 TCP 连接。
+     * 只能在已经取得响应码之后调用；不要调用 disconnect()，它会直接关闭池中的连接
+     */
+    private static void discardBody(HttpURLConnection conn) {
+        try (InputStream is = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream()) {
+            if (is != null) {
+                is.transferTo(OutputStream.nullOutputStream());
+            }
+        } catch (IOException e) {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * 请求中途出错时关闭连接，状态未知的连接不能再放回连接池
+     */
+    private static void abort(@Nullable HttpURLConnection conn) {
+        if (conn != null) {
+            conn.disconnect();
+        }
+    }
+
     /**
      * 读取输入流
      */
     private String readInputStream(InputStream is) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        byte[] buffer = new byte[8192];
-        int bytesRead;
-        while ((bytesRead = is.read(buffer)) != -1) {
-            sb.append(new String(buffer, 0, bytesRead, StandardCharsets.UTF_8));
-        }
-        return sb.toString();
+        // 一次读完再解码，避免多字节字符被缓冲区边界截断
+        return new String(is.readAllBytes(), StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,229 @@
+package fun.sakuraspark.sakuraupdater.network;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+import fun.sakuraspark.sakuraupdater.config.DataConfig;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.ChunkData;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.Data;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.FileData;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.PathData;
+import fun.sakuraspark.sakuraupdater.utils.MD5;
+
+/**
+ * 最新版本可下载文件的内存索引
+ * <p>
+ * 以 sourcePath 为键，在启动或数据变更时根据最新版本整体重建一次，
+ * 通过替换 volatile 引用原子切换，下载请求只做一次 HashMap 查找，不再访问数据库。
+ * </p>
+ */
+public class FileIndex {
+    private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(FileIndex.class);
+
+    /**
+     * 索引中的单个文件
+     */
+    public static class Entry {
+        public final FileData data;
+        public final File file;
+        public final Path path;
+        public final long size; // 建立索引时的文件大小，文件不存在时为 -1
+        public final long lastModified; // 建立索引时的修改时间
+        // 最近一次校验 MD5 通过时文件的大小和修改时间
+        private long verifiedSize = -1;
+        private long verifiedModified = -1;
+
+        private Entry(FileData data, File file) {
+            this.data = data;
+            this.file = file;
+            this.path = file.toPath();
+            this.size = file.isFile() ? file.length() : -1;
+            this.lastModified = file.lastModified();
+        }
+
+        /**
+         * 磁盘上的文件是否仍是提交时的内容
+         * <p>
+         * 大小与提交时记录的不同直接判定为已改动；否则计算 MD5 与提交时比较，
+         * 结果按大小和修改时间缓存，文件不变时只计算一次。
+         * </p>
+         */
+        public synchronized boolean isUnchanged() {
+            long currentSize = file.length();
+            long modified = file.lastModified();
+            if (currentSize == verifiedSize && modified == verifiedModified) {
+                return true;
+            }
+            if (data.md5 == null || !file.isFile() || data.size > 0 && currentSize != data.size) {
+                return false;
+            }
+            try {
+                if (!data.md5.equals(MD5.calculateMD5(file))) {
+                    LOGGER.warn("File {} does not match the committed md5 {}", file, data.md5);
+                    return false;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to verify {}", file, e);
+                return false;
+            }
+            verifiedSize = currentSize;
+            verifiedModified = modified;
+            return true;
+        }
+
+        /**
+         * 沿用上一次索引中同一文件的校验结果，避免每次重建索引后重新计算 MD5
+         */
+        private synchronized void inherit(@Nullable Entry previous) {
+            if (previous != null && previous.file.equals(file) && Objects.equals(previous.data.md5, data.md5)) {
+                synchronized (previous) {
+                    verifiedSize = previous.verifiedSize;
+                    verifiedModified = previous.verifiedModified;
+                }
+            }
+        }
+    }
+
+    /**
+     * 大文件中的一个块，内容相同的块只记录一次
+     */
+    public static class ChunkRef {
+        public final Entry entry;
+        public final long offset;
+        public final int size;
+
+        private ChunkRef(Entry entry, ChunkData chunk) {
+            this.entry = entry;
+            this.offset = chunk.offset;
+            this.size = chunk.size;
+        }
+    }
+
+    private static final class Snapshot {
+        private final String version;
+        private final Map<String, Entry> bySourcePath;
+        private final Map<String, Entry> byMd5;
+        private final Map<String, ChunkRef> chunks;
+
+        private Snapshot(String version, Map<String, Entry> bySourcePath, Map<String, Entry> byMd5,
+                Map<String, ChunkRef> chunks) {
+            this.version = version;
+            this.bySourcePath = bySourcePath;
+            this.byMd5 = byMd5;
+            this.chunks = chunks;
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(null, Collections.emptyMap(), Collections.emptyMap(),
+            Collections.emptyMap());
+
+    private volatile Snapshot snapshot = EMPTY;
+    // 由清单中的文件信息得到磁盘上的文件，默认是 sourcePath，中继模式下是本地缓存
+    private final Function<FileData, File> resolver;
+
+    public FileIndex() {
+        this(data -> new File(data.sourcePath));
+    }
+
+    public FileIndex(Function<FileData, File> resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * 根据数据库中的最新版本重建索引
+     */
+    public synchronized void rebuild() {
+        Data lastData = DataConfig.getLastData();
+        if (lastData == null || lastData.paths == null) {
+            snapshot = EMPTY;
+            LOGGER.debug("File index cleared, no version available");
+            return;
+        }
+        Snapshot previous = snapshot;
+        Map<String, Entry> bySourcePath = new HashMap<>();
+        Map<String, Entry> byMd5 = new HashMap<>();
+        Map<String, ChunkRef> chunks = new HashMap<>();
+        for (PathData pathData : lastData.paths) {
+            if (pathData.files == null) {
+                continue;
+            }
+            for (FileData fileData : pathData.files) {
+                Entry entry = bySourcePath.computeIfAbsent(fileData.sourcePath, k -> {
+                    Entry created = new Entry(fileData, resolver.apply(fileData));
+                    created.inherit(previous.bySourcePath.get(k));
+                    return created;
+                });
+                if (fileData.md5 != null) {
+                    byMd5.putIfAbsent(fileData.md5, entry);
+                }
+                if (fileData.chunks != null) {
+                    for (ChunkData chunk : fileData.chunks) {
+                        chunks.putIfAbsent(chunk.md5, new ChunkRef(entry, chunk));
+                    }
+                }
+            }
+        }
+        snapshot = new Snapshot(lastData.version, bySourcePath, byMd5, chunks);
+        LOGGER.debug("File index rebuilt for version {}, {} files, {} chunks", lastData.version,
+                bySourcePath.size(), chunks.size());
+    }
+
+    /**
+     * 查找最新版本中的文件
+     * @return 不在列表中时返回 null
+     */
+    @Nullable
+    public Entry get(String sourcePath) {
+        return snapshot.bySourcePath.get(sourcePath);
+    }
+
+    /**
+     * 按内容 MD5 查找最新版本中的文件
+     * @return 不在列表中时返回 null
+     */
+    @Nullable
+    public Entry getByMd5(String md5) {
+        return snapshot.byMd5.get(md5);
+    }
+
+    /**
+     * 按内容 MD5 查找大文件中的块
+     * @return 不在列表中时返回 null
+     */
+    @Nullable
+    public ChunkRef getChunk(String md5) {
+        return snapshot.chunks.get(md5);
+    }
+
+    /**
+     * 重新读取文件的大小和修改时间，用于建立索引后才出现的文件（中继模式下从上游下载的文件）
+     */
+    public Entry refresh(Entry entry) {
+        return new Entry(entry.data, entry.file);
+    }
+
+    /**
+     * 最新版本中的所有文件，内容相同的文件只出现一次
+     */
+    public Collection<Entry> entries() {
+        return Collections.unmodifiableCollection(snapshot.byMd5.values());
+    }
+
+    /**
+     * 当前索引对应的版本号
+     */
+    @Nullable
+    public String getVersion() {
+        return snapshot.version;
+    }
+}
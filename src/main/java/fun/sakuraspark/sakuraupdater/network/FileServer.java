@@ -1,43 +1,188 @@
 package fun.sakuraspark.sakuraupdater.network;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import fun.sakuraspark.sakuraupdater.config.DataConfig;
-import fun.sakuraspark.sakuraupdater.config.DataConfig.Data;
-import fun.sakuraspark.sakuraupdater.config.DataConfig.FileData;
-import fun.sakuraspark.sakuraupdater.config.DataConfig.PathData;
+import fun.sakuraspark.sakuraupdater.config.IGetServerConfig;
+import fun.sakuraspark.sakuraupdater.utils.AggregatedLog;
+import fun.sakuraspark.sakuraupdater.utils.Metrics;
 
 
 
 public class FileServer {
     private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(FileServer.class);
+    // 服务端能力声明，客户端据此选择下载方式
+    public static final String CAPABILITIES_HEADER = "X-SakuraUpdater-Capabilities";
+    public static final String CAPABILITY_BLOB = "blob";
+    public static final String CAPABILITY_BATCH = "batch";
+    public static final String CAPABILITY_PATCH = "patch";
+    public static final String CAPABILITY_CHUNK = "chunk";
+    public static final String CAPABILITY_CHANGES = "changes";
+    public static final String CAPABILITY_STREAM_UPLOAD = "stream-upload";
+    private static final String CAPABILITIES = String.join(",", "range", CAPABILITY_BLOB, CAPABILITY_BATCH,
+            CAPABILITY_PATCH, CAPABILITY_CHUNK, CAPABILITY_CHANGES, CAPABILITY_STREAM_UPLOAD);
+    // nio 引擎只提供不需要流式读写请求体的接口
+    private static final String NIO_CAPABILITIES = String.join(",", "range", CAPABILITY_BLOB, CAPABILITY_CHANGES,
+            CAPABILITY_STREAM_UPLOAD);
+    public static final String ENGINE_NIO = "nio";
+    // 单次批量下载最多包含的文件数
+    public static final int MAX_BATCH_FILES = 1000;
+    static final String GZIP_ETAG_SUFFIX = "-gzip";
+    // 按内容哈希寻址的响应可以被长期缓存，只加在 200/206 响应上，503 等错误不能被缓存
+    private static final String IMMUTABLE_CACHE = "public, max-age=31536000, immutable";
+    // 流式上传的文件名请求头
+    public static final String UPLOAD_FILE_HEADER = "X-File";
+    // 流式上传单个分块的最大长度
+    public static final int MAX_UPLOAD_CHUNK = 8 * 1024 * 1024;
+    private static final Pattern MD5_PATTERN = Pattern.compile("[0-9a-f]{32}");
+    // nio 引擎下 /updateList、/file 的 JSON 请求体上限
+    private static final int NIO_JSON_BODY = 64 * 1024;
+    // nio 引擎下 /upload 的请求体上限，更大的文件使用 jdk 引擎的 /upload/stream
+    private static final int NIO_UPLOAD_BODY = 4 * 1024 * 1024;
+    // 下载被拒绝时建议客户端等待的秒数，实际值会加上随机抖动，避免客户端再次同时到达
+    private static final int RETRY_AFTER_SECONDS = 2;
+    private static final int RETRY_AFTER_JITTER = 4;
+    // 心跳由每个客户端定时调用，每分钟最多输出一条汇总日志
+    private static final AggregatedLog HEARTBEAT_LOG = new AggregatedLog(LOGGER, "Heartbeat received and responded", 60);
+    private static final AggregatedLog HANDSHAKE_LOG = new AggregatedLog(LOGGER, "Handshake received and responded", 60);
+    private static final Metrics.Counter BYTES_SENT = Metrics.counter("sakuraupdater_bytes_sent_total",
+            "File content bytes sent to clients, after compression.");
     private final int port;
+    // 中继模式下从上游获取文件，普通模式为 null
+    @Nullable
+    private final Relay relay;
     private HttpServer httpServer;
+    private NioHttpServer nioServer;
+    private ExecutorService executor;
+    private DownloadGovernor governor;
     private boolean isRunning = false;
 
     // 存储所有可用文件信息
-    private final Map<String, File> availableFiles = new HashMap<>();
+    private final Map<String, File> availableFiles = new ConcurrentHashMap<>();
+
+    // 最新版本的文件索引，数据变更时重建
+    private final FileIndex fileIndex;
+    // /updateList 响应缓存
+    private final ManifestCache manifestCache = new ManifestCache();
+    // 版本间变化的缓存，/changes 和握手共用
+    private final ChangeSets changeSets = new ChangeSets();
+    // 预压缩文件缓存
+    private final CompressionCache compressionCache =
+            new CompressionCache(new File(IGetServerConfig.getCacheDir(), "gzip"));
+    // 版本间的差分补丁，由提交命令生成
+    private final PatchStore patchStore = new PatchStore();
+    // 热点文件的内存映射缓存
+    private final MappedFileCache mappedFileCache =
+            new MappedFileCache(IGetServerConfig.getMappedCacheSize() * 1024L * 1024L);
+    // 后台任务线程，用于生成预压缩文件等耗时操作
+    private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FileServer-Background");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Runnable dataChangeListener = this::onDataChanged;
 
     public FileServer(int port) {
+        this(port, null);
+    }
+
+    /**
+     * @param relay 不为 null 时以中继模式运行，文件从上游获取并缓存在本地
+     */
+    public FileServer(int port, @Nullable Relay relay) {
         this.port = port;
+        this.relay = relay;
+        this.fileIndex = relay != null ? new FileIndex(relay::objectFile) : new FileIndex();
+    }
+
+    /**
+     * 数据库中的版本数据发生变化
+     */
+    private void onDataChanged() {
+        manifestCache.invalidate();
+        changeSets.invalidate();
+        mappedFileCache.invalidateAll();
+        fileIndex.rebuild();
+        buildCompressionCache();
+    }
+
+    /**
+     * 中继模式下新版本的文件全部下载完成，索引中的文件信息需要重新读取
+     */
+    private void onRelayPrefetched() {
+        changeSets.invalidate();
+        mappedFileCache.invalidateAll();
+        fileIndex.rebuild();
+        buildCompressionCache();
+    }
+
+    /**
+     * 中继模式下文件在第一次被请求时从上游下载，下载完成后重新读取文件信息
+     * @return 可以发送的索引项，普通模式下原样返回，下载失败时返回 null
+     */
+    @Nullable
+    private FileIndex.Entry prepare(@Nullable FileIndex.Entry entry) {
+        if (entry == null || relay == null || entry.isUnchanged()) {
+            return entry;
+        }
+        return relay.fetch(entry.data) ? fileIndex.refresh(entry) : null;
+    }
+
+    /**
+     * 在后台为最新版本生成预压缩文件
+     */
+    private void buildCompressionCache() {
+        backgroundExecutor.execute(() -> {
+            try {
+                compressionCache.build(fileIndex.entries());
+            } catch (Exception e) {
+                LOGGER.error("Failed to build compression cache", e);
+            }
+        });
     }
 
     /**
@@ -45,19 +190,39 @@ public class FileServer {
      */
     public void start() {
         try {
-            httpServer = HttpServer.create(new InetSocketAddress(port), 0);
-            
-            // 创建不同的处理器
-            httpServer.createContext("/heartbeat", new HeartBeatHandler());
-            httpServer.createContext("/updateList", new UpdateListHandler());
-            httpServer.createContext("/file", new FileDownloadHandler());
-            httpServer.createContext("/upload", new FileUploadHandler());
-            
-            // 设置线程池大小
-            httpServer.setExecutor(java.util.concurrent.Executors.newFixedThreadPool(10));
-            
-            httpServer.start();
+            fileIndex.rebuild();
+            buildCompressionCache();
+            DataConfig.addChangeListener(dataChangeListener);
+            governor = createGovernor();
+
+            // 设置线程模型
+            executor = createExecutor();
+            if (ENGINE_NIO.equals(IGetServerConfig.getEngine())) {
+                startNio();
+            } else {
+                httpServer = HttpServer.create(new InetSocketAddress(port), IGetServerConfig.getBacklog());
+
+                // 创建不同的处理器
+                httpServer.createContext("/heartbeat", instrument("heartbeat", new HeartBeatHandler()));
+                httpServer.createContext("/handshake", instrument("handshake", new HandshakeHandler()));
+                httpServer.createContext("/updateList", instrument("updateList", new UpdateListHandler()));
+                httpServer.createContext("/changes", instrument("changes", new ChangesHandler()));
+                httpServer.createContext("/file", instrument("file", new FileDownloadHandler()));
+                httpServer.createContext("/upload", instrument("upload", new FileUploadHandler()));
+                httpServer.createContext("/upload/stream", instrument("uploadStream", new StreamUploadHandler()));
+                httpServer.createContext("/blob/", instrument("blob", new BlobHandler()));
+                httpServer.createContext("/batch", instrument("batch", new BatchDownloadHandler()));
+                httpServer.createContext("/patch/", instrument("patch", new PatchHandler()));
+                httpServer.createContext("/chunk/", instrument("chunk", new ChunkHandler()));
+                httpServer.createContext("/metrics", new MetricsHandler());
+                httpServer.setExecutor(executor);
+                httpServer.start();
+            }
+            registerGauges();
             isRunning = true;
+            if (relay != null) {
+                relay.start(this::onRelayPrefetched);
+            }
             LOGGER.info("File server started on port: {}", port);
         } catch (IOException e) {
             LOGGER.error("Failed to start file server", e);
@@ -65,22 +230,196 @@ public class FileServer {
         }
     }
 
+    /**
+     * 使用 nio 引擎启动，工作线程只生成响应，文件内容由事件循环线程发送
+     */
+    private void startNio() throws IOException {
+        // nio 引擎由事件循环直接发送文件，无法按令牌桶限速，配置了限速时不能静默忽略
+        if (IGetServerConfig.getBandwidthLimit() > 0 || IGetServerConfig.getClientBandwidthLimit() > 0) {
+            throw new IOException("bandwidth_limit and client_bandwidth_limit are not supported by the nio engine, "
+                    + "set them to 0 or use the httpserver engine");
+        }
+        nioServer = new NioHttpServer(new InetSocketAddress(port), IGetServerConfig.getBacklog(), executor,
+                IGetServerConfig.getSocketSendBuffer() * 1024, IGetServerConfig.getIoTimeout() * 1000L);
+        nioServer.createContext("/heartbeat", instrumentNio("heartbeat", new NioHeartBeatHandler()));
+        nioServer.createContext("/handshake", instrumentNio("handshake", new NioHandshakeHandler()));
+        nioServer.createContext("/updateList", instrumentNio("updateList", new NioUpdateListHandler()), NIO_JSON_BODY);
+        nioServer.createContext("/changes", instrumentNio("changes", new NioChangesHandler()));
+        nioServer.createContext("/file", instrumentNio("file", new NioFileDownloadHandler()), NIO_JSON_BODY);
+        nioServer.createContext("/upload", instrumentNio("upload", new NioFileUploadHandler()), NIO_UPLOAD_BODY);
+        // 流式上传的请求体不读入内存，和 jdk 引擎一样不限制总长度
+        nioServer.createStreamingContext("/upload/stream", instrumentNio("uploadStream", new NioStreamUploadHandler()),
+                Long.MAX_VALUE);
+        nioServer.createContext("/blob/", instrumentNio("blob", new NioBlobHandler()));
+        nioServer.createContext("/metrics", new NioMetricsHandler());
+        nioServer.start();
+        LOGGER.info("File server uses nio engine, io timeout {}s, socket send buffer {} KiB (0 = system default)",
+                IGetServerConfig.getIoTimeout(), IGetServerConfig.getSocketSendBuffer());
+    }
+
+    /**
+     * 根据配置创建请求处理线程池
+     */
+    private ExecutorService createExecutor() {
+        if ("virtual".equals(IGetServerConfig.getExecutor())) {
+            try {
+                // 项目以 Java 17 为目标编译，通过反射调用 JDK 21 的虚拟线程 API
+                ExecutorService virtual = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                LOGGER.info("File server uses virtual threads");
+                return virtual;
+            } catch (ReflectiveOperationException e) {
+                LOGGER.warn("Virtual threads need Java 21+, current is {}, falling back to fixed thread pool",
+                        System.getProperty("java.version"));
+            }
+        }
+        int threads = IGetServerConfig.getThreads();
+        AtomicInteger counter = new AtomicInteger();
+        LOGGER.info("File server uses fixed thread pool, threads: {}", threads);
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "FileServer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 根据配置创建下载流量控制
+     */
+    private static DownloadGovernor createGovernor() {
+        int maxDownloads = IGetServerConfig.getMaxDownloads();
+        long bandwidthLimit = IGetServerConfig.getBandwidthLimit() * 1024L;
+        long clientBandwidthLimit = IGetServerConfig.getClientBandwidthLimit() * 1024L;
+        if (!"virtual".equals(IGetServerConfig.getExecutor())
+                && (maxDownloads == 0 || maxDownloads >= IGetServerConfig.getThreads())) {
+            LOGGER.warn("max_downloads ({}) is not below threads ({}), downloads may starve heartbeats",
+                    maxDownloads, IGetServerConfig.getThreads());
+        }
+        LOGGER.info("Download limits: maxDownloads={}, bandwidth={} B/s, clientBandwidth={} B/s (0 = unlimited)",
+                maxDownloads, bandwidthLimit, clientBandwidthLimit);
+        return new DownloadGovernor(maxDownloads, bandwidthLimit, clientBandwidthLimit);
+    }
+
+    /**
+     * 包装处理器，记录请求数和耗时
+     */
+    private static HttpHandler instrument(String name, HttpHandler handler) {
+        Metrics.Histogram latency = Metrics.histogram("sakuraupdater_http_request_duration_seconds",
+                "Time spent handling HTTP requests, including sending the response body.", "handler", name);
+        return exchange -> {
+            long start = System.nanoTime();
+            try {
+                handler.handle(exchange);
+            } finally {
+                latency.observeSince(start);
+                Metrics.counter("sakuraupdater_http_requests_total", "Total HTTP requests by handler and status code.",
+                        "handler", name, "code", String.valueOf(exchange.getResponseCode())).inc();
+            }
+        };
+    }
+
+    /**
+     * 包装 nio 处理器，记录请求数和耗时，耗时包含事件循环发送响应体的时间
+     */
+    private static NioHttpServer.Handler instrumentNio(String name, NioHttpServer.Handler handler) {
+        Metrics.Histogram latency = Metrics.histogram("sakuraupdater_http_request_duration_seconds",
+                "Time spent handling HTTP requests, including sending the response body.", "handler", name);
+        return request -> {
+            long start = System.nanoTime();
+            NioHttpServer.Response response = handler.handle(request);
+            return response.onComplete(sent -> {
+                latency.observeSince(start);
+                Metrics.counter("sakuraupdater_http_requests_total", "Total HTTP requests by handler and status code.",
+                        "handler", name, "code", String.valueOf(response.getStatus())).inc();
+            });
+        };
+    }
+
+    /**
+     * 注册读取服务器当前状态的指标
+     */
+    private void registerGauges() {
+        DownloadGovernor currentGovernor = governor;
+        Metrics.gauge("sakuraupdater_transfers_in_flight", "Downloads currently being sent.",
+                currentGovernor::getActiveDownloads);
+        Metrics.gauge("sakuraupdater_mapped_cache_bytes", "Bytes of files currently memory-mapped.",
+                mappedFileCache::getMappedBytes);
+        if (executor instanceof ThreadPoolExecutor pool) {
+            Metrics.gauge("sakuraupdater_executor_queue_depth", "Requests waiting for a worker thread.",
+                    () -> pool.getQueue().size());
+            Metrics.gauge("sakuraupdater_executor_active_threads", "Worker threads currently handling a request.",
+                    pool::getActiveCount);
+        }
+        NioHttpServer currentNioServer = nioServer;
+        if (currentNioServer != null) {
+            Metrics.gauge("sakuraupdater_open_connections", "Connections currently open on the nio engine.",
+                    currentNioServer::getConnectionCount);
+        }
+    }
+
+    private static void unregisterGauges() {
+        Metrics.removeGauge("sakuraupdater_transfers_in_flight");
+        Metrics.removeGauge("sakuraupdater_mapped_cache_bytes");
+        Metrics.removeGauge("sakuraupdater_executor_queue_depth");
+        Metrics.removeGauge("sakuraupdater_executor_active_threads");
+        Metrics.removeGauge("sakuraupdater_open_connections");
+    }
+
     public boolean isRunning() {
         return isRunning;
     }
 
+    /**
+     * 提交新版本后在后台生成相对上一版本的差分补丁，线程随服务器关闭
+     */
+    public void generatePatches(@Nullable DataConfig.Data previous, List<DataConfig.PathData> current) {
+        patchStore.updateAsync(previous, current);
+    }
+
     /**
      * 关闭文件服务器
      */
     public void shutdown() {
         isRunning = false;
+        DataConfig.removeChangeListener(dataChangeListener);
+        unregisterGauges();
+        if (relay != null) {
+            relay.shutdown();
+        }
         if (httpServer != null) {
             httpServer.stop(0);
         }
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        backgroundExecutor.shutdownNow();
+        patchStore.shutdown();
         LOGGER.info("File server stopped.");
     }
 
 
+    /**
+     * 运行指标处理器，GET /metrics，Prometheus 文本格式
+     */
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            byte[] responseBytes = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, responseBytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(responseBytes);
+            }
+        }
+    }
+
     /**
      * 心跳处理器
      */
@@ -91,19 +430,85 @@ public class FileServer {
                 String response = "OK";
                 byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
                 exchange.getResponseHeaders().set("Content-Type", "text/plain;charset=utf-8");
+                exchange.getResponseHeaders().set(CAPABILITIES_HEADER, CAPABILITIES);
                 exchange.sendResponseHeaders(200, responseBytes.length);
                 
                 try (OutputStream os = exchange.getResponseBody()) {
                     os.write(responseBytes);
                 }
                 
-                LOGGER.info("Heartbeat received and responded.");
+                HEARTBEAT_LOG.record();
             } else {
                 sendError(exchange, 405, "Method Not Allowed");
             }
         }
     }
 
+    /**
+     * 握手处理器，GET /handshake?version={客户端当前版本}
+     */
+    private class HandshakeHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            try {
+                String version = queryParam(exchange.getRequestURI().getRawQuery(), "version");
+                byte[] responseBytes = handshake(version, CAPABILITIES);
+                exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+                exchange.getResponseHeaders().set("Cache-Control", "no-store");
+                exchange.sendResponseHeaders(200, responseBytes.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(responseBytes);
+                }
+            } catch (Exception e) {
+                LOGGER.error("Error processing handshake request", e);
+                sendError(exchange, 500, "Internal Server Error");
+            }
+        }
+    }
+
+    /**
+     * 生成握手响应
+     * @param version 客户端当前版本，为空表示还没有安装任何版本
+     * @param capabilities 当前引擎的能力声明
+     */
+    private byte[] handshake(@Nullable String version, String capabilities) {
+        ManifestCache.Entry latest = manifestCache.getLatest();
+        Handshake handshake = new Handshake();
+        handshake.latest = latest.version;
+        handshake.etag = latest.etag;
+        handshake.capabilities = List.of(capabilities.split(","));
+        if (version != null && !version.isEmpty() && latest.version != null && !version.equals(latest.version)) {
+            ChangeSets.Entry changes = changeSets.get(version, latest.version);
+            if (changes != null) {
+                handshake.changes = changes.data;
+            }
+        }
+        HANDSHAKE_LOG.record();
+        return new Gson().toJson(handshake).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 从原始查询字符串中取出参数并解码，不存在时返回 null
+     */
+    @Nullable
+    private static String queryParam(@Nullable String rawQuery, String name) {
+        if (rawQuery == null) {
+            return null;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            if (key.equals(name)) {
+                return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
     /**
      * 更新列表处理器
      */
@@ -116,22 +521,26 @@ public class FileServer {
                     JsonObject jsonRequest = JsonParser.parseString(requestBody).getAsJsonObject();
                     String version = jsonRequest.has("version") ? jsonRequest.get("version").getAsString() : null; //获取版本号
                     
-                    Data data = null;
-                    if (version == null || version.isEmpty()) {
-                        data = DataConfig.getLastData();
-                    } else {
-                        data = DataConfig.getDataByVersion(version);
-                    }
+                    ManifestCache.Entry entry = getManifest(version);
                     
-                    String response;
-                    if (data == null) {
-                        response = "{}";
-                    } else {
-                        response = new Gson().toJson(data);
+                    // 客户端缓存的清单未变化时只返回 304
+                    if (entry.etag != null) {
+                        exchange.getResponseHeaders().set("ETag", entry.etag);
+                        if (entry.etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                            exchange.sendResponseHeaders(304, -1);
+                            exchange.close();
+                            LOGGER.debug("Update list not modified for version: {}", version);
+                            return;
+                        }
                     }
-                    
-                    byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+
+                    byte[] responseBytes = entry.json;
                     exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+                    exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+                    if (acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+                        responseBytes = entry.gzip();
+                        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    }
                     exchange.sendResponseHeaders(200, responseBytes.length);
                     
                     try (OutputStream os = exchange.getResponseBody()) {
@@ -149,6 +558,48 @@ public class FileServer {
         }
     }
 
+    /**
+     * 版本变化处理器，GET /changes?from={客户端当前版本}&to={目标版本}
+     */
+    private class ChangesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            try {
+                String rawQuery = exchange.getRequestURI().getRawQuery();
+                String from = queryParam(rawQuery, "from");
+                String to = queryParam(rawQuery, "to");
+                if (from == null || to == null) {
+                    sendError(exchange, 400, "Missing from or to parameter");
+                    return;
+                }
+                ChangeSets.Entry entry = changeSets.get(from, to);
+                if (entry == null) {
+                    sendError(exchange, 404, "Version not found");
+                    return;
+                }
+                byte[] responseBytes = entry.json;
+                exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+                exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+                if (acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+                    responseBytes = entry.gzip();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, responseBytes.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(responseBytes);
+                }
+                LOGGER.debug("Sent changes from {} to {}", from, to);
+            } catch (Exception e) {
+                LOGGER.error("Error processing changes request", e);
+                sendError(exchange, 500, "Internal Server Error");
+            }
+        }
+    }
+
     /**
      * 文件下载处理器
      */
@@ -167,56 +618,23 @@ public class FileServer {
                     }
                     
                     // 验证文件是否在允许列表中
-                    boolean fileFound = false;
-                    Data lastData = DataConfig.getLastData();
-                    if (lastData != null) {
-                        for (PathData pathData : lastData.paths) {
-                            for (FileData fileData : pathData.files) {
-                                if (fileData.sourcePath.equals(fileName)) {
-                                    fileFound = true;
-                                    break;
-                                }
-                            }
-                            if (fileFound) {
-                                break;
-                            }
-                        }
-                    }
-                    
-                    if (!fileFound) {
+                    FileIndex.Entry entry = fileIndex.get(fileName);
+                    if (entry == null) {
                         sendError(exchange, 403, "File not found in list");
                         return;
                     }
                     
-                    File file = new File(fileName);
-                    if (!file.exists() || !file.isFile()) {
+                    entry = prepare(entry);
+                    File file = entry != null ? entry.file : null;
+                    if (file == null || !file.isFile()) {
                         LOGGER.warn("This file in list but not found in local, please don't forget commit: {}", fileName);
                         sendError(exchange, 404, "File not found in server");
                         return;
                     }
                     
-                    try {
-                        long fileSize = file.length();
-                        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
-                        exchange.getResponseHeaders().set("Content-Length", String.valueOf(fileSize));
-                        String encodedFileName = java.net.URLEncoder.encode(file.getName(), StandardCharsets.UTF_8);
-                        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + encodedFileName + "\"");
-                        exchange.sendResponseHeaders(200, fileSize);
-                        
-                        try (OutputStream os = exchange.getResponseBody();
-                             FileInputStream fis = new FileInputStream(file)) {
-                            byte[] buffer = new byte[8192];
-                            int bytesRead;
-                            while ((bytesRead = fis.read(buffer)) != -1) {
-                                os.write(buffer, 0, bytesRead);
-                            }
-                        }
-                        
-                        LOGGER.debug("Send file success: {}", fileName);
-                    } catch (Exception e) {
-                        LOGGER.error("Send file failed: {}", fileName, e);
-                        if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
-                            sendError(exchange, 500, "Internal Server Error");
+                    try (DownloadGovernor.Permit permit = acquireDownload(exchange)) {
+                        if (permit != null) {
+                            sendFile(exchange, permit, file, entry.data.md5, false);
                         }
                     }
                 } catch (Exception e) {
@@ -229,6 +647,208 @@ public class FileServer {
         }
     }
 
+    /**
+     * 按内容哈希下载文件处理器，GET /blob/{md5}
+     * <p>
+     * 同一哈希对应的内容永远不变，因此响应可以被 nginx、Squid 等中间缓存长期缓存。
+     * </p>
+     */
+    private class BlobHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            try {
+                String md5 = exchange.getRequestURI().getPath().substring("/blob/".length());
+                if (!MD5_PATTERN.matcher(md5).matches()) {
+                    sendError(exchange, 400, "Invalid hash");
+                    return;
+                }
+
+                FileIndex.Entry entry = prepare(fileIndex.getByMd5(md5));
+                if (entry == null) {
+                    sendError(exchange, 404, "Blob not found");
+                    return;
+                }
+                // 提交后文件被改动过，内容已经和哈希不一致，不能当作不可变内容发送
+                if (!entry.isUnchanged()) {
+                    LOGGER.warn("This file has been changed since last commit, please don't forget commit: {}",
+                            entry.data.sourcePath);
+                    sendError(exchange, 404, "Blob not found");
+                    return;
+                }
+
+                try (DownloadGovernor.Permit permit = acquireDownload(exchange)) {
+                    if (permit != null) {
+                        sendFile(exchange, permit, entry.file, md5, true);
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.error("Error processing blob request", e);
+                sendError(exchange, 500, "Internal Server Error");
+            }
+        }
+    }
+
+    /**
+     * 差分补丁处理器，GET /patch/{旧md5}/{新md5}
+     * <p>
+     * 只提供结果仍属于最新版本的补丁，补丁和 blob 一样由内容哈希确定，可以被长期缓存。
+     * </p>
+     */
+    private class PatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            try {
+                String[] parts = exchange.getRequestURI().getPath().substring("/patch/".length()).split("/");
+                if (parts.length != 2 || !MD5_PATTERN.matcher(parts[0]).matches()
+                        || !MD5_PATTERN.matcher(parts[1]).matches()) {
+                    sendError(exchange, 400, "Invalid hash");
+                    return;
+                }
+                File patch;
+                if (relay != null) {
+                    // 中继模式没有提交，补丁从上游获取
+                    patch = fileIndex.getByMd5(parts[1]) != null ? relay.fetchPatch(parts[0], parts[1]) : null;
+                } else {
+                    FileIndex.Entry entry = fileIndex.getByMd5(parts[1]);
+                    patch = entry != null && entry.isUnchanged() ? patchStore.getPatch(parts[0], parts[1]) : null;
+                }
+                if (patch == null) {
+                    sendError(exchange, 404, "Patch not found");
+                    return;
+                }
+
+                try (DownloadGovernor.Permit permit = acquireDownload(exchange)) {
+                    if (permit != null) {
+                        // 补丁本身已经压缩，以新旧哈希作为 ETag，不存在对应的预压缩版本
+                        sendFile(exchange, permit, patch, parts[0] + "-" + parts[1], true);
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.error("Error processing patch request", e);
+                sendError(exchange, 500, "Internal Server Error");
+            }
+        }
+    }
+
+    /**
+     * 大文件块下载处理器，GET /chunk/{md5}
+     * <p>
+     * 块在提交时按内容切分，md5 为块内容的哈希，和 blob 一样可以被长期缓存。
+     * 不同文件、不同版本中相同的块共用同一个地址，客户端本地已有的块无需下载。
+     * </p>
+     */
+    private class ChunkHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            try {
+                String md5 = exchange.getRequestURI().getPath().substring("/chunk/".length());
+                if (!MD5_PATTERN.matcher(md5).matches()) {
+                    sendError(exchange, 400, "Invalid hash");
+                    return;
+                }
+                FileIndex.ChunkRef chunk = fileIndex.getChunk(md5);
+                FileIndex.Entry entry = chunk != null ? prepare(chunk.entry) : null;
+                if (entry == null || !entry.isUnchanged()) {
+                    sendError(exchange, 404, "Chunk not found");
+                    return;
+                }
+
+                try (DownloadGovernor.Permit permit = acquireDownload(exchange)) {
+                    if (permit != null) {
+                        sendChunk(exchange, permit, chunk, md5);
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.error("Error processing chunk request", e);
+                sendError(exchange, 500, "Internal Server Error");
+            }
+        }
+    }
+
+    /**
+     * 批量下载处理器，请求体为 {"files": [sourcePath, ...]}
+     * <p>
+     * 按请求顺序在一个响应中连续返回所有文件，每个条目为
+     * writeUTF(sourcePath) + writeLong(长度) + 文件内容，长度为 -1 表示该文件无法提供。
+     * 用于大量小文件，避免每个文件单独建立请求。
+     * </p>
+     */
+    private class BatchDownloadHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            List<String> fileNames = new ArrayList<>();
+            try {
+                String requestBody = readRequestBody(exchange);
+                JsonObject jsonRequest = JsonParser.parseString(requestBody).getAsJsonObject();
+                if (!jsonRequest.has("files")) {
+                    sendError(exchange, 400, "Missing files parameter");
+                    return;
+                }
+                jsonRequest.getAsJsonArray("files").forEach(element -> fileNames.add(element.getAsString()));
+            } catch (Exception e) {
+                LOGGER.error("Error processing batch download request", e);
+                sendError(exchange, 400, "Invalid request format");
+                return;
+            }
+            if (fileNames.size() > MAX_BATCH_FILES) {
+                sendError(exchange, 413, "Too many files, max " + MAX_BATCH_FILES);
+                return;
+            }
+
+            DownloadGovernor.Permit permit = acquireDownload(exchange);
+            if (permit == null) {
+                return;
+            }
+            int sent = 0;
+            try (permit) {
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, 0);
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(permit.wrap(exchange.getResponseBody()), 64 * 1024))) {
+                    for (String fileName : fileNames) {
+                        out.writeUTF(fileName);
+                        FileIndex.Entry entry = prepare(fileIndex.get(fileName));
+                        if (entry == null || !entry.file.isFile()) {
+                            out.writeLong(-1);
+                            continue;
+                        }
+                        try (FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+                            long size = channel.size();
+                            out.writeLong(size);
+                            long transferred = FileTransfer.transfer(channel, 0, size, out);
+                            BYTES_SENT.add(transferred);
+                            if (transferred != size) {
+                                // 长度已经写出，内容不足时只能中断整个响应
+                                throw new IOException("File truncated while sending: " + fileName);
+                            }
+                        }
+                        sent++;
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("Batch download interrupted after {} files", sent, e);
+                return;
+            }
+            LOGGER.debug("Send batch success: {}/{} files", sent, fileNames.size());
+        }
+    }
+
     /**
      * 文件上传处理器
      */
@@ -279,6 +899,702 @@ public class FileServer {
         }
     }
 
+    /**
+     * 发送文件内容，支持 Range / If-Range 断点续传
+     * @param md5 文件的 MD5，用作强 ETag
+     * @param immutable 内容由地址中的哈希确定，成功时允许长期缓存
+     */
+    private void sendFile(HttpExchange exchange, DownloadGovernor.Permit permit, File file, String md5,
+            boolean immutable) throws IOException {
+        String fileName = file.getPath();
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        // 不是断点续传且客户端接受 gzip 时，发送预先压缩好的版本
+        if (exchange.getRequestHeaders().getFirst("Range") == null
+                && acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+            File gzip = compressionCache.getGzip(md5);
+            if (gzip != null) {
+                sendCompressedFile(exchange, permit, gzip, md5, fileName, immutable);
+                return;
+            }
+        }
+        // 热点文件直接从内存映射发送，其他文件打开通道读取
+        ByteBuffer mapped = mappedFileCache.get(file);
+        try (FileChannel channel = mapped == null ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null) {
+            long fileSize = mapped != null ? mapped.remaining() : channel.size();
+            String etag = "\"" + md5 + "\"";
+            String lastModified = DateTimeFormatter.RFC_1123_DATE_TIME
+                    .format(Instant.ofEpochMilli(file.lastModified()).atZone(ZoneOffset.UTC));
+
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", "application/octet-stream");
+            headers.set("Accept-Ranges", "bytes");
+            headers.set("ETag", etag);
+            headers.set("Last-Modified", lastModified);
+            String encodedFileName = java.net.URLEncoder.encode(file.getName(), StandardCharsets.UTF_8);
+            headers.set("Content-Disposition", "attachment; filename=\"" + encodedFileName + "\"");
+
+            // If-Range 不匹配时忽略 Range，返回完整文件
+            String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (rangeHeader != null && ifRange != null && !ifRange.equals(etag) && !ifRange.equals(lastModified)) {
+                rangeHeader = null;
+            }
+
+            long start = 0;
+            long length = fileSize;
+            int status = 200;
+            if (rangeHeader != null) {
+                long[] range = parseRange(rangeHeader, fileSize);
+                if (range == UNSATISFIABLE_RANGE) {
+                    headers.set("Content-Range", "bytes */" + fileSize);
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                if (range != null) {
+                    start = range[0];
+                    length = range[1] - range[0] + 1;
+                    status = 206;
+                    headers.set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + fileSize);
+                }
+            }
+
+            headers.set("Content-Length", String.valueOf(length));
+            if (immutable) {
+                headers.set("Cache-Control", IMMUTABLE_CACHE);
+            }
+            exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+            try (OutputStream os = permit.wrap(exchange.getResponseBody())) {
+                if (mapped != null) {
+                    BYTES_SENT.add(FileTransfer.transfer(mapped.slice((int) start, (int) length), os));
+                } else {
+                    BYTES_SENT.add(FileTransfer.transfer(channel, start, length, os));
+                }
+            }
+
+            LOGGER.debug("Send file success: {} ({} bytes from {})", fileName, length, start);
+        } catch (Exception | InternalError e) {
+            // InternalError 表示映射的文件在发送过程中被截断
+            if (mapped != null) {
+                mappedFileCache.invalidate(file);
+            }
+            LOGGER.error("Send file failed: {}", fileName, e);
+            if (exchange.getResponseCode() == -1) {
+                sendError(exchange, 500, "Internal Server Error");
+            }
+        }
+    }
+
+    /**
+     * 发送大文件中的一个块，块本身就是下载单位，不支持 Range
+     */
+    private void sendChunk(HttpExchange exchange, DownloadGovernor.Permit permit, FileIndex.ChunkRef chunk,
+            String md5) throws IOException {
+        File file = chunk.entry.file;
+        ByteBuffer mapped = mappedFileCache.get(file);
+        try (FileChannel channel = mapped == null ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null) {
+            long fileSize = mapped != null ? mapped.remaining() : channel.size();
+            if (chunk.offset + chunk.size > fileSize) {
+                sendError(exchange, 404, "Chunk not found");
+                return;
+            }
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", "application/octet-stream");
+            headers.set("ETag", "\"" + md5 + "\"");
+            headers.set("Cache-Control", IMMUTABLE_CACHE);
+            exchange.sendResponseHeaders(200, chunk.size == 0 ? -1 : chunk.size);
+            try (OutputStream os = permit.wrap(exchange.getResponseBody())) {
+                if (mapped != null) {
+                    BYTES_SENT.add(FileTransfer.transfer(mapped.slice((int) chunk.offset, chunk.size), os));
+                } else {
+                    BYTES_SENT.add(FileTransfer.transfer(channel, chunk.offset, chunk.size, os));
+                }
+            }
+            LOGGER.debug("Send chunk success: {} ({} bytes from {})", file, chunk.size, chunk.offset);
+        } catch (Exception | InternalError e) {
+            if (mapped != null) {
+                mappedFileCache.invalidate(file);
+            }
+            LOGGER.error("Send chunk failed: {}", file, e);
+            if (exchange.getResponseCode() == -1) {
+                sendError(exchange, 500, "Internal Server Error");
+            }
+        }
+    }
+
+    /**
+     * 申请下载许可，超出并发上限时返回 503 和 Retry-After，并返回 null
+     */
+    @Nullable
+    private DownloadGovernor.Permit acquireDownload(HttpExchange exchange) throws IOException {
+        DownloadGovernor.Permit permit = governor.tryAcquire(exchange.getRemoteAddress().getAddress().getHostAddress());
+        if (permit == null) {
+            exchange.getResponseHeaders().set("Retry-After", retryAfter());
+            sendError(exchange, 503, "Too many downloads, retry later");
+        }
+        return permit;
+    }
+
+    /**
+     * 建议客户端等待的秒数
+     */
+    private static String retryAfter() {
+        return String.valueOf(RETRY_AFTER_SECONDS + ThreadLocalRandom.current().nextInt(RETRY_AFTER_JITTER + 1));
+    }
+
+    /**
+     * 获取指定版本的清单，版本为空时获取最新版本
+     */
+    private ManifestCache.Entry getManifest(@Nullable String version) {
+        if (version == null || version.isEmpty()) {
+            return manifestCache.getLatest();
+        }
+        ManifestCache.Entry entry = manifestCache.get(version);
+        // 中继模式下本地没有的旧版本从上游获取
+        if (entry.version == null && relay != null && relay.mirror(version)) {
+            entry = manifestCache.get(version);
+        }
+        return entry;
+    }
+
+    /**
+     * 发送 gzip 压缩版本，压缩版本不支持 Range
+     */
+    private void sendCompressedFile(HttpExchange exchange, DownloadGovernor.Permit permit, File gzip, String md5,
+            String fileName, boolean immutable) throws IOException {
+        ByteBuffer mapped = mappedFileCache.get(gzip);
+        try (FileChannel channel = mapped == null ? FileChannel.open(gzip.toPath(), StandardOpenOption.READ) : null) {
+            long size = mapped != null ? mapped.remaining() : channel.size();
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", "application/octet-stream");
+            headers.set("Content-Encoding", "gzip");
+            headers.set("ETag", "\"" + md5 + GZIP_ETAG_SUFFIX + "\"");
+            if (immutable) {
+                headers.set("Cache-Control", IMMUTABLE_CACHE);
+            }
+            exchange.sendResponseHeaders(200, size);
+            try (OutputStream os = permit.wrap(exchange.getResponseBody())) {
+                BYTES_SENT.add(mapped != null
+                        ? FileTransfer.transfer(mapped, os)
+                        : FileTransfer.transfer(channel, 0, size, os));
+            }
+            LOGGER.debug("Send compressed file success: {} ({} bytes)", fileName, size);
+        } catch (Exception | InternalError e) {
+            if (mapped != null) {
+                mappedFileCache.invalidate(gzip);
+            }
+            LOGGER.error("Send compressed file failed: {}", fileName, e);
+            if (exchange.getResponseCode() == -1) {
+                sendError(exchange, 500, "Internal Server Error");
+            }
+        }
+    }
+
+    // 无法满足的 Range，需要返回 416
+    private static final long[] UNSATISFIABLE_RANGE = new long[0];
+
+    /**
+     * 解析单段 Range 请求头
+     * @return [start, end]（含 end），无法识别或多段时返回 null 表示忽略，越界返回 {@link #UNSATISFIABLE_RANGE}
+     */
+    private static long[] parseRange(String header, long size) {
+        header = header.trim();
+        if (!header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // bytes=-N 表示最后 N 个字节
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || size == 0) {
+                    return UNSATISFIABLE_RANGE;
+                }
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                if (start >= size || end < start) {
+                    return UNSATISFIABLE_RANGE;
+                }
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 客户端是否接受 gzip 编码
+     */
+    private static boolean acceptsGzip(@Nullable String acceptEncoding) {
+        return acceptEncoding != null && acceptEncoding.toLowerCase(java.util.Locale.ROOT).contains("gzip");
+    }
+
+    /**
+     * 流式上传处理器，POST /upload/stream
+     * <p>
+     * 文件名放在 URL 编码的 X-File 请求头中，请求体由若干分块组成，每块为
+     * writeInt(长度) + 内容 + writeLong(CRC32)，长度为 0 的块表示结束。
+     * 内容逐块校验后写入同目录下的临时文件，全部完成后原子替换目标文件，内存占用与文件大小无关。
+     * </p>
+     */
+    private class StreamUploadHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            String header = exchange.getRequestHeaders().getFirst(UPLOAD_FILE_HEADER);
+            String fileName = header == null ? null : URLDecoder.decode(header, StandardCharsets.UTF_8);
+            if (fileName == null || fileName.isEmpty()) {
+                sendError(exchange, 400, "Missing file parameter");
+                return;
+            }
+
+            try {
+                long total = receiveUpload(fileName, exchange.getRequestBody());
+                byte[] responseBytes = uploadResponse(fileName, total);
+                exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+                exchange.sendResponseHeaders(200, responseBytes.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(responseBytes);
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to upload file: {}", fileName, e);
+                sendError(exchange, 400, "Failed to upload file: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 接收分块上传的文件，逐块校验后写入同目录下的临时文件，全部完成后原子替换目标文件
+     * @return 文件大小
+     */
+    private long receiveUpload(String fileName, InputStream body) throws IOException {
+        File file = new File(fileName);
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        File temp = null;
+        boolean moved = false;
+        try {
+            temp = File.createTempFile(file.getName() + ".", ".upload", parent);
+            long total = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(body, 64 * 1024));
+                 OutputStream out = new FileOutputStream(temp)) {
+                byte[] buffer = new byte[64 * 1024];
+                CRC32 crc = new CRC32();
+                while (true) {
+                    int length = in.readInt();
+                    if (length == 0) {
+                        break;
+                    }
+                    if (length < 0 || length > MAX_UPLOAD_CHUNK) {
+                        throw new IOException("Invalid chunk length: " + length);
+                    }
+                    crc.reset();
+                    int remaining = length;
+                    while (remaining > 0) {
+                        int n = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                        if (n < 0) {
+                            throw new EOFException("Upload ended inside a chunk");
+                        }
+                        crc.update(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        remaining -= n;
+                    }
+                    if (in.readLong() != crc.getValue()) {
+                        throw new IOException("Chunk checksum mismatch at offset " + total);
+                    }
+                    total += length;
+                }
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+            availableFiles.put(fileName, file);
+            LOGGER.info("File uploaded successfully: {} ({} bytes)", fileName, total);
+            return total;
+        } finally {
+            // 任何异常都不能在目标目录中留下临时文件
+            if (temp != null && !moved) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static byte[] uploadResponse(String fileName, long size) {
+        JsonObject response = new JsonObject();
+        response.addProperty("status", "success");
+        response.addProperty("message", "File uploaded successfully");
+        response.addProperty("file", fileName);
+        response.addProperty("size", size);
+        return new Gson().toJson(response).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * nio 引擎的运行指标处理器，GET /metrics
+     */
+    private class NioMetricsHandler implements NioHttpServer.Handler {
+        @Override
+        public NioHttpServer.Response handle(NioHttpServer.Request request) {
+            if (!"GET".equals(request.method)) {
+                return NioHttpServer.Response.text(405, "Method Not Allowed");
+            }
+            return NioHttpServer.Response.bytes(200, "text/plain; version=0.0.4; charset=utf-8",
+                    Metrics.scrape().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * nio 引擎的心跳处理器
+     */
+    private class NioHeartBeatHandler implements NioHttpServer.Handler {
+        @Override
+        public NioHttpServer.Response handle(NioHttpServer.Request request) {
+            if (!"POST".equals(request.method)) {
+                return NioHttpServer.Response.text(405, "Method Not Allowed");
+            }
+            HEARTBEAT_LOG.record();
+            return NioHttpServer.Response.text(200, "OK").header(CAPABILITIES_HEADER, NIO_CAPABILITIES);
+        }
+    }
+
+    /**
+     * nio 引擎的握手处理器
+     */
+    private class NioHandshakeHandler implements NioHttpServer.Handler {
+        @Override
+        public NioHttpServer.Response handle(NioHttpServer.Request request) {
+            if (!"GET".equals(request.method)) {
+                return NioHttpServer.Response.text(405, "Method Not Allowed");
+            }
+            try {
+                String version = queryParam(request.query, "version");
+                return NioHttpServer.Response.bytes(200, "application/json;charset=utf-8",
+                        handshake(version, NIO_CAPABILITIES)).header("Cache-Control", "no-store");
+            } catch (Exception e) {
+                LOGGER.error("Error processing handshake request", e);
+                return NioHttpServer.Response.text(500, "Internal Server Error");
+            }
+        }
+    }
+
+    /**
+     * nio 引擎的更新列表处理器
+     */
+    private class NioUpdateListHandler implements NioHttpServer.Handler {
+        @Override
+        public NioHttpServer.Response handle(NioHttpServer.Request request) {
+            if (!"POST".equals(request.method)) {
+                return NioHttpServer.Response.text(405, "Method Not Allowed");
+            }
+            try {
+                JsonObject jsonRequest = JsonParser.parseString(request.bodyAsString()).getAsJsonObject();
+                String version = jsonRequest.has("version") ? jsonRequest.get("version").getAsString() : null;
+                ManifestCache.Entry entry = getManifest(version);
+
+                // 客户端缓存的清单未变化时只返回 304
+                if (entry.etag != null && entry.etag.equals(request.header("If-None-Match"))) {
+                    LOGGER.debug("Update list not modified for version: {}", version);
+                    return NioHttpServer.Response.empty(304).header("ETag", entry.etag);
+                }
+                boolean gzip = acceptsGzip(request.header("Accept-Encoding"));
+                NioHttpServer.Response response = NioHttpServer.Response
+                        .bytes(200, "application/json;charset=utf-8", gzip ? entry.gzip() : entry.json)
+                        .header("Vary", "Accept-Encoding");
+                if (entry.etag != null) {
+                    response.header("ETag", entry.etag);
+                }
+                if (gzip) {
+                    response.header("Content-Encoding", "gzip");
+                }
+                LOGGER.debug("Sent update list for version: {}", version);
+                return response;
+            } catch (Exception e) {
+                LOGGER.error("Error processing update list request", e);
+                return NioHttpServer.Response.text(400, "Invalid request format");
+            }
+        }
+    }
+
+    /**
+     * nio 引擎的版本变化处理器
+     */
+    private class NioChangesHandler implements NioHttpServer.Handler {
+        @Override
+        public NioHttpServer.Response handle(NioHttpServer.Request request) {
+            if (!"GET".equals(request.method)) {
+                return NioHttpServer.Response.text(405, "Method Not Allowed");
+            }
+            try {
+                String from = queryParam(request.query, "from");
+                String to = queryParam(request.query, "to");
+                if (from == null || to == null) {
+                    return NioHttpServer.Response.text(400, "Missing from or to parameter");
+                }
+                ChangeSets.Entry entry = changeSets.get(from, to);
+                if (entry == null) {
+                    return NioHttpServer.Response.text(404, "Version not found");
+                }
+                boolean gzip = acceptsGzip(request.header("Accept-Encoding"));
+                NioHttpServer.Response response = NioHttpServer.Response
+                        .bytes(200, "application/json;charset=utf-8", gzip ? entry.gzip() : entry.json)
+                        .header("Vary", "Accept-Encoding");
+                if (gzip) {
+                    response.header("Content-Encoding", "gzip");
+                }
+                LOGGER.debug("Sent changes from {} to {}", from, to);
+                return response;
+            } catch (Exception e) {
+                LOGGER.error("Error processing changes request", e);
+                return NioHttpServer.Response.text(500, "Internal Server Error");
+            }
+        }
+    }
+
+    /**
+     * nio 引擎的文件下载处理器
+     */
+    private class NioFileDownloadHandler implements NioHttpServer.Handler {
+        @Override
+        public NioHttpServer.Response handle(NioHttpServer.Request request) {
+            if (!"POST".equals(request.method)) {
+                return NioHttpServer.Response.text(405, "Method Not Allowed");
+            }
+            try {
+                JsonObject jsonRequest = JsonParser.parseString(request.bodyAsString()).getAsJsonObject();
+                String fileName = jsonRequest.has("file") ? jsonRequest.get("file").getAsString() : null;
+                if (fileName == null || fileName.isEmpty()) {
+                    return NioHttpServer.Response.text(400, "Missing file parameter");
+                }
+
+                // 验证文件是否在允许列表中
+                FileIndex.Entry entry = fileIndex.get(fileName);
+                if (entry == null) {
+                    return NioHttpServer.Response.text(403, "File not found in list");
+                }
+                entry = prepare(entry);
+                if (entry == null || !entry.file.isFile()) {
+                    LOGGER.warn("This file in list but not found in local, please don't forget commit: {}", fileName);
+                    return NioHttpServer.Response.text(404, "File not found in server");
+                }
+                return nioDownload(request, entry.file, entry.data.md5);
+            } catch (Exception e) {
+                LOGGER.error("Error processing file download request", e);
+                return NioHttpServer.Response.text(400, "Invalid request format");
+            }
+        }
+    }
+
+    /**
+     * nio 引擎的按内容哈希下载处理器，GET /blob/{md5}
+     */
+    private class NioBlobHandler implements NioHttpServer.Handler {
+        @Override
+        public NioHttpServer.Response handle(NioHttpServer.Request request) {
+            if (!"GET".equals(request.method)) {
+                return NioHttpServer.Response.text(405, "Method Not Allowed");
+            }
+            try {
+                String md5 = request.path.substring("/blob/".length());
+                if (!MD5_PATTERN.matcher(md5).matches()) {
+                    return NioHttpServer.Response.text(400, "Invalid hash");
+                }
+                FileIndex.Entry entry = prepare(fileIndex.getByMd5(md5));
+                if (entry == null) {
+                    return NioHttpServer.Response.text(404, "Blob not found");
+                }
+                // 提交后文件被改动过，内容已经和哈希不一致，不能当作不可变内容发送
+                if (!entry.isUnchanged()) {
+                    LOGGER.warn("This file has been changed since last commit, please don't forget commit: {}",
+                            entry.data.sourcePath);
+                    return NioHttpServer.Response.text(404, "Blob not found");
+                }
+                NioHttpServer.Response response = nioDownload(request, entry.file, md5);
+                if (response.getStatus() == 200 || response.getStatus() == 206) {
+                    response.header("Cache-Control", IMMUTABLE_CACHE);
+                }
+                return response;
+            } catch (Exception e) {
+                LOGGER.error("Error processing blob request", e);
+                return NioHttpServer.Response.text(500, "Internal Server Error");
+            }
+        }
+    }
+
+    /**
+     * nio 引擎的文件上传处理器，请求体为 JSON，文件内容为 Base64
+     */
+    private class NioFileUploadHandler implements NioHttpServer.Handler {
+        @Override
+        public NioHttpServer.Response handle(NioHttpServer.Request request) {
+            if (!"POST".equals(request.method)) {
+                return NioHttpServer.Response.text(405, "Method Not Allowed");
+            }
+            try {
+                JsonObject jsonRequest = JsonParser.parseString(request.bodyAsString()).getAsJsonObject();
+                String fileName = jsonRequest.has("file") ? jsonRequest.get("file").getAsString() : null;
+                String fileContent = jsonRequest.has("content") ? jsonRequest.get("content").getAsString() : null;
+                if (fileName == null || fileName.isEmpty()) {
+                    return NioHttpServer.Response.text(400, "Missing file parameter");
+                }
+                if (fileContent == null) {
+                    return NioHttpServer.Response.text(400, "Missing content parameter");
+                }
+
+                saveUploadedFileFromJson(fileName, fileContent);
+
+                JsonObject response = new JsonObject();
+                response.addProperty("status", "success");
+                response.addProperty("message", "File uploaded successfully");
+                response.addProperty("file", fileName);
+                LOGGER.info("File uploaded successfully: {}", fileName);
+                return NioHttpServer.Response.bytes(200, "application/json;charset=utf-8",
+                        new Gson().toJson(response).getBytes(StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                LOGGER.error("Failed to upload file", e);
+                return NioHttpServer.Response.text(500, "Failed to upload file");
+            }
+        }
+    }
+
+    /**
+     * nio 引擎的流式上传处理器，POST /upload/stream，格式与 {@link StreamUploadHandler} 相同
+     */
+    private class NioStreamUploadHandler implements NioHttpServer.Handler {
+        @Override
+        public NioHttpServer.Response handle(NioHttpServer.Request request) {
+            if (!"POST".equals(request.method)) {
+                return NioHttpServer.Response.text(405, "Method Not Allowed");
+            }
+            String header = request.header(UPLOAD_FILE_HEADER);
+            String fileName = header == null ? null : URLDecoder.decode(header, StandardCharsets.UTF_8);
+            if (fileName == null || fileName.isEmpty()) {
+                return NioHttpServer.Response.text(400, "Missing file parameter");
+            }
+            try {
+                long total = receiveUpload(fileName, request.bodyStream());
+                return NioHttpServer.Response.bytes(200, "application/json;charset=utf-8",
+                        uploadResponse(fileName, total));
+            } catch (IOException e) {
+                LOGGER.error("Failed to upload file: {}", fileName, e);
+                return NioHttpServer.Response.text(400, "Failed to upload file: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 申请下载许可并生成文件响应，许可在事件循环发送完毕或连接中断后释放
+     * @param md5 文件的 MD5，用作强 ETag
+     */
+    private NioHttpServer.Response nioDownload(NioHttpServer.Request request, File file, String md5)
+            throws IOException {
+        DownloadGovernor.Permit permit = governor.tryAcquire(request.remoteAddress.getAddress().getHostAddress());
+        if (permit == null) {
+            return NioHttpServer.Response.text(503, "Too many downloads, retry later")
+                    .header("Retry-After", retryAfter());
+        }
+        try {
+            return nioFile(request, file, md5).onComplete(sent -> {
+                BYTES_SENT.add(sent);
+                permit.close();
+            });
+        } catch (IOException | RuntimeException e) {
+            permit.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 生成文件响应，支持 Range / If-Range 和预压缩的 gzip 版本
+     * <p>
+     * 热点文件直接发送内存映射的缓冲区，其他文件打开通道，由事件循环通过 transferTo 发送，通道随响应关闭。
+     * </p>
+     */
+    private NioHttpServer.Response nioFile(NioHttpServer.Request request, File file, String md5) throws IOException {
+        String rangeHeader = request.header("Range");
+        File body = file;
+        boolean gzip = false;
+        // 不是断点续传且客户端接受 gzip 时，发送预先压缩好的版本
+        if (rangeHeader == null && acceptsGzip(request.header("Accept-Encoding"))) {
+            File compressed = compressionCache.getGzip(md5);
+            if (compressed != null) {
+                body = compressed;
+                gzip = true;
+            }
+        }
+        ByteBuffer mapped = mappedFileCache.get(body);
+        FileChannel channel = mapped == null ? FileChannel.open(body.toPath(), StandardOpenOption.READ) : null;
+        try {
+            long size = mapped != null ? mapped.remaining() : channel.size();
+            if (gzip) {
+                return body(200, mapped, channel, 0, size)
+                        .header("Vary", "Accept-Encoding")
+                        .header("Content-Encoding", "gzip")
+                        .header("ETag", "\"" + md5 + GZIP_ETAG_SUFFIX + "\"");
+            }
+            String etag = "\"" + md5 + "\"";
+            String lastModified = DateTimeFormatter.RFC_1123_DATE_TIME
+                    .format(Instant.ofEpochMilli(file.lastModified()).atZone(ZoneOffset.UTC));
+
+            // If-Range 不匹配时忽略 Range，返回完整文件
+            String ifRange = request.header("If-Range");
+            if (rangeHeader != null && ifRange != null && !ifRange.equals(etag) && !ifRange.equals(lastModified)) {
+                rangeHeader = null;
+            }
+            long[] range = rangeHeader != null ? parseRange(rangeHeader, size) : null;
+            if (range == UNSATISFIABLE_RANGE) {
+                if (channel != null) {
+                    channel.close();
+                }
+                return NioHttpServer.Response.empty(416).header("Content-Range", "bytes */" + size);
+            }
+            NioHttpServer.Response response = range != null
+                    ? body(206, mapped, channel, range[0], range[1] - range[0] + 1)
+                            .header("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size)
+                    : body(200, mapped, channel, 0, size);
+            String encodedFileName = java.net.URLEncoder.encode(file.getName(), StandardCharsets.UTF_8);
+            return response.header("Vary", "Accept-Encoding")
+                    .header("Accept-Ranges", "bytes")
+                    .header("ETag", etag)
+                    .header("Last-Modified", lastModified)
+                    .header("Content-Disposition", "attachment; filename=\"" + encodedFileName + "\"");
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    private static NioHttpServer.Response body(int status, @Nullable ByteBuffer mapped, @Nullable FileChannel channel,
+            long start, long length) {
+        return mapped != null
+                ? NioHttpServer.Response.buffer(status, "application/octet-stream",
+                        mapped.slice((int) start, (int) length))
+                : NioHttpServer.Response.file(status, "application/octet-stream", channel, start, length);
+    }
+
     /**
      * 发送错误响应
      */
@@ -0,0 +1,76 @@
+package fun.sakuraspark.sakuraupdater.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 文件发送工具
+ * <p>
+ * com.sun.net.httpserver 的响应流拿不到底层 socket 通道，只能经过缓冲区拷贝，
+ * 这里使用 64KB 缓冲区减少 read/write 调用次数。nio 引擎的事件循环能拿到通道，
+ * 文件响应由 {@link NioHttpServer} 直接使用 {@link FileChannel#transferTo} 发送，不经过这里。
+ * </p>
+ */
+public class FileTransfer {
+    // 拷贝使用的缓冲区大小，比原先的 8KB 大，减少 write 调用次数
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private FileTransfer() {
+        // 工具类，禁止实例化
+    }
+
+    /**
+     * 将整个文件发送到输出流
+     * @return 实际发送的字节数
+     */
+    public static long transfer(File file, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return transfer(channel, 0, channel.size(), out);
+        }
+    }
+
+    /**
+     * 将文件通道中指定区间的内容发送到输出流
+     * @param channel 源文件通道
+     * @param position 起始位置
+     * @param count 需要发送的字节数
+     * @param out 目标输出流
+     * @return 实际发送的字节数
+     */
+    public static long transfer(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(count, 1)));
+        long sent = 0;
+        while (sent < count) {
+            buffer.clear();
+            if (count - sent < buffer.capacity()) {
+                buffer.limit((int) (count - sent));
+            }
+            int n = channel.read(buffer, position + sent);
+            if (n < 0) {
+                break; // 文件在发送过程中被截断
+            }
+            out.write(buffer.array(), 0, n);
+            sent += n;
+        }
+        return sent;
+    }
+
+    /**
+     * 将缓冲区（通常是内存映射的文件）中剩余的内容发送到输出流
+     * @return 实际发送的字节数
+     */
+    public static long transfer(ByteBuffer buffer, OutputStream out) throws IOException {
+        long count = buffer.remaining();
+        byte[] chunk = new byte[(int) Math.min(BUFFER_SIZE, Math.max(count, 1))];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+        return count;
+    }
+}
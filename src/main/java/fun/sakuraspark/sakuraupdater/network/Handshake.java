@@ -0,0 +1,25 @@
+package fun.sakuraspark.sakuraupdater.network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import fun.sakuraspark.sakuraupdater.config.DataConfig.ChangeData;
+
+/**
+ * GET /handshake 的响应
+ * <p>
+ * 一次请求同时完成心跳、获取最新版本号、清单 ETag 和服务端能力，客户端已是最新版本时启动只需要这一次请求。
+ * 客户端版本落后时附带两个版本之间的变化（与 /changes 相同），push 路径不需要再单独请求旧版本的清单。
+ * </p>
+ */
+public class Handshake {
+    @Nullable
+    public String latest; // 服务端没有任何版本时为 null
+    @Nullable
+    public String etag; // 最新清单的 ETag，与本地缓存一致时不需要再请求清单
+    public List<String> capabilities = new ArrayList<>();
+    @Nullable
+    public ChangeData changes; // 客户端版本不存在或已是最新时为 null
+}
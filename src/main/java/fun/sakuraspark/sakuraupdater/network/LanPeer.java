@@ -0,0 +1,378 @@
+package fun.sakuraspark.sakuraupdater.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import fun.sakuraspark.sakuraupdater.config.DataConfig.Data;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.FileData;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.PathData;
+import fun.sakuraspark.sakuraupdater.utils.MD5;
+
+/**
+ * 局域网客户端互助分发
+ * <p>
+ * 完成更新的客户端在本机开启一个只读的小型文件服务，按内容 MD5 提供实例中的文件，
+ * 并定时通过 UDP 组播宣告自己的地址和版本。其他客户端收到宣告后优先从同版本的节点下载，
+ * 下载结果仍按清单中的 MD5 校验，节点不可用时回退到源服务器，局域网内只需从外网下载一份。
+ * </p>
+ * <p>
+ * 宣告格式为一行文本：{@code SAKURAUPDATER-PEER 1 <节点ID> <端口> <版本号>}，
+ * 节点 ID 用于忽略自己的宣告，同一台机器上的多个客户端也能互相发现。
+ * </p>
+ */
+public class LanPeer {
+    private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(LanPeer.class);
+    public static final String DEFAULT_GROUP = "239.255.43.21";
+    public static final int DEFAULT_MULTICAST_PORT = 25563;
+    private static final String ANNOUNCE_PREFIX = "SAKURAUPDATER-PEER 1 ";
+    private static final long ANNOUNCE_INTERVAL_SECONDS = 5;
+    // 超过该时间没有收到宣告的节点视为离线
+    private static final long PEER_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(ANNOUNCE_INTERVAL_SECONDS * 3);
+    // 同时为其他客户端提供的下载数，超出时返回 503，对方会换一个节点
+    private static final int MAX_UPLOADS = 4;
+    private static final Pattern MD5_PATTERN = Pattern.compile("[0-9a-f]{32}");
+
+    private final int httpPort;
+    private final InetAddress group;
+    private final int multicastPort;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final DownloadGovernor governor = new DownloadGovernor(MAX_UPLOADS, 0, 0);
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+
+    // 对外提供的文件，按 MD5 索引，通过替换引用整体切换
+    private volatile Map<String, SharedFile> shared = Collections.emptyMap();
+    @Nullable
+    private volatile String sharedVersion;
+
+    private HttpServer httpServer;
+    private ExecutorService executor;
+    private MulticastSocket socket;
+    private ScheduledExecutorService announcer;
+    private Thread listener;
+    private volatile boolean running = false;
+
+    /**
+     * 局域网中发现的其他客户端
+     */
+    public static final class Peer {
+        public final String host;
+        public final int port;
+        public final String version;
+        private final long lastSeen;
+
+        private Peer(String host, int port, String version) {
+            this.host = host;
+            this.port = port;
+            this.version = version;
+            this.lastSeen = System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /**
+     * 本机对外提供的单个文件，首次被请求时校验内容，之后文件大小和修改时间不变就不再重复校验
+     */
+    private static final class SharedFile {
+        private final File file;
+        private final String md5;
+        private long verifiedSize = -1;
+        private long verifiedModified = -1;
+
+        private SharedFile(File file, String md5) {
+            this.file = file;
+            this.md5 = md5;
+        }
+
+        private synchronized boolean verify() {
+            long size = file.length();
+            long modified = file.lastModified();
+            if (size == verifiedSize && modified == verifiedModified) {
+                return true;
+            }
+            if (!file.isFile() || !md5.equals(MD5.calculateMD5(file))) {
+                return false;
+            }
+            verifiedSize = size;
+            verifiedModified = modified;
+            return true;
+        }
+    }
+
+    /**
+     * @param httpPort 本机文件服务端口，0 表示随机端口
+     */
+    public LanPeer(int httpPort) throws IOException {
+        this(httpPort, InetAddress.getByName(DEFAULT_GROUP), DEFAULT_MULTICAST_PORT);
+    }
+
+    public LanPeer(int httpPort, InetAddress group, int multicastPort) {
+        this.httpPort = httpPort;
+        this.group = group;
+        this.multicastPort = multicastPort;
+    }
+
+    /**
+     * 启动文件服务、组播监听和定时宣告
+     */
+    public void start() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(httpPort), 0);
+        httpServer.createContext("/heartbeat", this::handleHeartbeat);
+        httpServer.createContext("/blob/", this::handleBlob);
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(MAX_UPLOADS + 1, runnable -> {
+            Thread thread = new Thread(runnable, "LanPeer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(executor);
+        httpServer.start();
+
+        socket = new MulticastSocket(multicastPort);
+        socket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        socket.setTimeToLive(1); // 只在本网段内传播
+        joinGroup();
+        running = true;
+
+        listener = new Thread(this::listen, "LanPeer-Listener");
+        listener.setDaemon(true);
+        listener.start();
+        announcer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LanPeer-Announcer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        announcer.scheduleWithFixedDelay(this::announce, 0, ANNOUNCE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        LOGGER.info("LAN peer started on port {}, multicast group {}:{}", getPort(), group.getHostAddress(),
+                multicastPort);
+    }
+
+    /**
+     * 在所有支持组播的网卡上加入组播组，至少有一个成功即可
+     */
+    private void joinGroup() throws IOException {
+        InetSocketAddress address = new InetSocketAddress(group, multicastPort);
+        int joined = 0;
+        for (NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            try {
+                if (nif.isUp() && nif.supportsMulticast()) {
+                    socket.joinGroup(address, nif);
+                    joined++;
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Failed to join multicast group on {}", nif.getName(), e);
+            }
+        }
+        if (joined == 0) {
+            socket.joinGroup(address, null);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        if (announcer != null) {
+            announcer.shutdownNow();
+        }
+        if (socket != null) {
+            socket.close(); // 同时让监听线程从 receive 中退出
+        }
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        peers.clear();
+        LOGGER.info("LAN peer stopped");
+    }
+
+    /**
+     * 本机文件服务实际使用的端口
+     */
+    public int getPort() {
+        return httpServer != null ? httpServer.getAddress().getPort() : httpPort;
+    }
+
+    /**
+     * 对外提供指定版本中的文件，应在该版本的所有文件下载并校验完成后调用
+     */
+    public void share(Data data) {
+        Map<String, SharedFile> files = new HashMap<>();
+        if (data.paths != null) {
+            for (PathData pathData : data.paths) {
+                for (FileData fileData : pathData.files) {
+                    files.putIfAbsent(fileData.md5, new SharedFile(new File(fileData.targetPath), fileData.md5));
+                }
+            }
+        }
+        shared = files;
+        sharedVersion = data.version;
+        LOGGER.info("Sharing {} files of version {} with LAN peers", files.size(), data.version);
+        if (running) {
+            announcer.execute(this::announce);
+        }
+    }
+
+    /**
+     * 已经完成指定版本的在线节点，顺序随机，把下载分散到不同节点
+     */
+    public List<Peer> getPeers(String version) {
+        long now = System.currentTimeMillis();
+        peers.values().removeIf(peer -> now - peer.lastSeen > PEER_TIMEOUT_MILLIS);
+        List<Peer> result = new ArrayList<>();
+        for (Peer peer : peers.values()) {
+            if (peer.version.equals(version)) {
+                result.add(peer);
+            }
+        }
+        Collections.shuffle(result);
+        return result;
+    }
+
+    /**
+     * 节点连接失败时移除，等待下一次宣告再加入
+     */
+    public void removePeer(Peer peer) {
+        peers.values().remove(peer);
+    }
+
+    private void announce() {
+        String version = sharedVersion;
+        if (version == null || version.isEmpty() || !running) {
+            return;
+        }
+        byte[] payload = (ANNOUNCE_PREFIX + nodeId + " " + getPort() + " " + version)
+                .getBytes(StandardCharsets.UTF_8);
+        try {
+            socket.send(new DatagramPacket(payload, payload.length, group, multicastPort));
+        } catch (IOException e) {
+            LOGGER.debug("Failed to send LAN peer announcement", e);
+        }
+    }
+
+    private void listen() {
+        byte[] buffer = new byte[512];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketException e) {
+                break; // 已关闭
+            } catch (IOException e) {
+                LOGGER.debug("Failed to receive LAN peer announcement", e);
+                continue;
+            }
+            String message = new String(packet.getData(), packet.getOffset(), packet.getLength(),
+                    StandardCharsets.UTF_8);
+            if (!message.startsWith(ANNOUNCE_PREFIX)) {
+                continue;
+            }
+            // 版本号可能包含空格，放在最后
+            String[] parts = message.substring(ANNOUNCE_PREFIX.length()).split(" ", 3);
+            if (parts.length != 3 || parts[0].equals(nodeId)) {
+                continue;
+            }
+            try {
+                int port = Integer.parseInt(parts[1]);
+                if (port <= 0 || port > 65535) {
+                    continue;
+                }
+                Peer peer = new Peer(packet.getAddress().getHostAddress(), port, parts[2]);
+                if (peers.put(parts[0], peer) == null) {
+                    LOGGER.info("Found LAN peer {} with version {}", peer, peer.version);
+                }
+            } catch (NumberFormatException ignored) {
+                // 格式错误的宣告
+            }
+        }
+    }
+
+    /**
+     * 兼容 {@link FileClient#heartbeat()}，声明 blob 能力
+     */
+    private void handleHeartbeat(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set(FileServer.CAPABILITIES_HEADER, FileServer.CAPABILITY_BLOB);
+        sendText(exchange, 200, "OK");
+    }
+
+    /**
+     * GET /blob/{md5}，只提供校验通过的文件
+     */
+    private void handleBlob(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            String md5 = exchange.getRequestURI().getPath().substring("/blob/".length());
+            SharedFile file = MD5_PATTERN.matcher(md5).matches() ? shared.get(md5) : null;
+            if (file == null || !file.verify()) {
+                sendText(exchange, 404, "Blob not found");
+                return;
+            }
+            try (DownloadGovernor.Permit permit = governor.tryAcquire(
+                    exchange.getRemoteAddress().getAddress().getHostAddress())) {
+                if (permit == null) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    sendText(exchange, 503, "Too many downloads");
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.getResponseHeaders().set("ETag", "\"" + md5 + "\"");
+                exchange.sendResponseHeaders(200, file.file.length());
+                try (OutputStream os = exchange.getResponseBody()) {
+                    FileTransfer.transfer(file.file, os);
+                }
+                LOGGER.debug("Served {} to LAN peer {}", file.file, exchange.getRemoteAddress());
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Failed to serve LAN peer request", e);
+            if (exchange.getResponseCode() == -1) {
+                sendText(exchange, 500, "Internal Server Error");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int code, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain;charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
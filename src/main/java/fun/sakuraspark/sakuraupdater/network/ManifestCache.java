@@ -0,0 +1,170 @@
+package fun.sakuraspark.sakuraupdater.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+import com.google.gson.Gson;
+
+import fun.sakuraspark.sakuraupdater.config.DataConfig;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.Data;
+import fun.sakuraspark.sakuraupdater.utils.MD5;
+import fun.sakuraspark.sakuraupdater.utils.SingleFlight;
+
+/**
+ * /updateList 响应缓存
+ * <p>
+ * 按版本缓存序列化好的 UTF-8 JSON 字节以及对应的 gzip 压缩结果，
+ * 重复请求只需要拷贝字节，不再查询数据库和重新序列化。数据变更时整体失效。
+ * </p>
+ */
+public class ManifestCache {
+    private static final Gson GSON = new Gson();
+    private static final byte[] EMPTY_JSON = "{}".getBytes(StandardCharsets.UTF_8);
+    // 同一条目的并发请求只压缩一次
+    private static final SingleFlight<Entry, byte[]> COMPRESSIONS = new SingleFlight<>("manifest_gzip");
+
+    /**
+     * 单个版本的缓存内容
+     */
+    public static class Entry {
+        @Nullable
+        public final String version; // 版本不存在时为 null
+        @Nullable
+        public final Data data; // 版本不存在时为 null，只读
+        public final byte[] json;
+        @Nullable
+        public final String etag; // 版本号加内容哈希，版本不存在时为 null
+        private volatile byte[] gzip;
+
+        private Entry(@Nullable Data data, byte[] json) {
+            this.version = data == null ? null : data.version;
+            this.data = data;
+            this.json = json;
+            this.etag = version == null ? null : buildETag(version, json);
+        }
+
+        /**
+         * gzip 压缩后的 JSON，第一次使用时生成
+         */
+        public byte[] gzip() {
+            byte[] result = gzip;
+            if (result == null) {
+                result = COMPRESSIONS.execute(this, () -> {
+                    byte[] compressed = gzip;
+                    if (compressed == null) {
+                        compressed = compress(json);
+                        gzip = compressed;
+                    }
+                    return compressed;
+                });
+            }
+            return result;
+        }
+    }
+
+    private final Map<String, Entry> byVersion = new ConcurrentHashMap<>();
+    // 新版本发布后大量客户端同时请求清单，同一版本只查询数据库和序列化一次
+    private final SingleFlight<String, Entry> loads = new SingleFlight<>("manifest");
+    private volatile Entry latest;
+    // 每次失效递增，防止失效前开始的加载把旧数据写回缓存
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * 获取最新版本的缓存
+     */
+    public Entry getLatest() {
+        Entry entry = latest;
+        if (entry != null) {
+            return entry;
+        }
+        // 以缓存代数为键的一部分，失效后到达的请求不会等待失效前开始的加载
+        long gen = generation.get();
+        return loads.execute(gen + "/", () -> {
+            Entry loaded = toEntry(DataConfig.getLastData());
+            if (generation.get() == gen) {
+                latest = loaded;
+                if (loaded.version != null) {
+                    byVersion.putIfAbsent(loaded.version, loaded);
+                }
+            }
+            return loaded;
+        });
+    }
+
+    /**
+     * 获取指定版本的缓存，版本不存在时返回内容为 {} 的条目
+     */
+    public Entry get(String version) {
+        Entry entry = byVersion.get(version);
+        if (entry != null) {
+            return entry;
+        }
+        long gen = generation.get();
+        return loads.execute(gen + "/" + version, () -> {
+            Entry loaded = toEntry(DataConfig.getDataByVersion(version));
+            if (loaded.version != null && generation.get() == gen) {
+                byVersion.putIfAbsent(version, loaded);
+            }
+            return loaded;
+        });
+    }
+
+    /**
+     * 清空缓存，在提交、编辑、删除、清空数据后调用
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        latest = null;
+        byVersion.clear();
+    }
+
+    /**
+     * 生成 ETag，格式为 "URL编码的版本号:JSON的MD5"，客户端可以直接从中取得版本号
+     */
+    private static String buildETag(String version, byte[] json) {
+        return "\"" + URLEncoder.encode(version, StandardCharsets.UTF_8) + ":" + MD5.calculateMD5(json) + "\"";
+    }
+
+    /**
+     * 从 ETag 中取出版本号，格式不对时返回 null
+     */
+    @Nullable
+    public static String versionFromETag(@Nullable String etag) {
+        if (etag == null || etag.length() < 2 || !etag.startsWith("\"") || !etag.endsWith("\"")) {
+            return null;
+        }
+        String value = etag.substring(1, etag.length() - 1);
+        int colon = value.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        return URLDecoder.decode(value.substring(0, colon), StandardCharsets.UTF_8);
+    }
+
+    private static Entry toEntry(@Nullable Data data) {
+        if (data == null) {
+            return new Entry(null, EMPTY_JSON);
+        }
+        return new Entry(data, GSON.toJson(data).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static byte[] compress(byte[] data) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bos.toByteArray();
+    }
+}
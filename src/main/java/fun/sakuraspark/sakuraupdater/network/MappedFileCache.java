@@ -0,0 +1,169 @@
+package fun.sakuraspark.sakuraupdater.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+import fun.sakuraspark.sakuraupdater.utils.Metrics;
+import fun.sakuraspark.sakuraupdater.utils.SingleFlight;
+
+/**
+ * 热点文件的内存映射缓存
+ * <p>
+ * 以路径 + 修改时间 + 大小为键缓存 {@link MappedByteBuffer}，同一个 jar 被大量客户端下载时只需打开和映射一次，
+ * 之后直接从映射内存发送，不再为每个请求打开文件和逐块 read。总映射大小超过预算时按 LRU 淘汰。
+ * </p>
+ * <p>
+ * 映射无法主动释放，被淘汰的映射在没有请求继续使用后由 GC 回收。
+ * 文件被原地截断时读取映射会抛出 {@link InternalError}，调用方需要处理。
+ * </p>
+ */
+public class MappedFileCache {
+    private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(MappedFileCache.class);
+    // 小文件映射的开销大于收益，直接读取
+    private static final long MIN_MAPPED_SIZE = 64 * 1024;
+
+    private static final Metrics.Counter HITS = Metrics.counter("sakuraupdater_mapped_cache_requests_total",
+            "Lookups in the memory-mapped file cache.", "result", "hit");
+    private static final Metrics.Counter MISSES = Metrics.counter("sakuraupdater_mapped_cache_requests_total",
+            "Lookups in the memory-mapped file cache.", "result", "miss");
+
+    private final long budget;
+    // accessOrder 为 true，迭代顺序即最近最少使用顺序
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes = 0;
+    private final SingleFlight<String, MappedByteBuffer> mappings = new SingleFlight<>("mapped_file");
+
+    /**
+     * @param budget 映射总大小上限（字节），0 表示禁用
+     */
+    public MappedFileCache(long budget) {
+        this.budget = budget;
+    }
+
+    private static final class Entry {
+        private final long lastModified;
+        private final long size;
+        private final MappedByteBuffer buffer;
+
+        private Entry(long lastModified, long size, MappedByteBuffer buffer) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * 获取文件内容的只读视图，位置和界限独立，可以随意修改
+     * @return 文件太小、太大或缓存被禁用时返回 null，调用方应回退到普通读取
+     */
+    @Nullable
+    public ByteBuffer get(File file) {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        if (size < MIN_MAPPED_SIZE || size > budget || size > Integer.MAX_VALUE) {
+            return null;
+        }
+        String key = file.getAbsolutePath();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.size == size && entry.lastModified == lastModified) {
+                    HITS.inc();
+                    return entry.buffer.asReadOnlyBuffer();
+                }
+                // 文件已经变化，旧映射作废
+                remove(key);
+            }
+        }
+        MISSES.inc();
+
+        // 映射放在锁外，避免阻塞其他请求；同一文件的并发未命中只映射一次
+        MappedByteBuffer buffer = mappings.execute(key + ":" + size + ":" + lastModified,
+                () -> map(file, key, size, lastModified));
+        return buffer != null ? buffer.asReadOnlyBuffer() : null;
+    }
+
+    @Nullable
+    private MappedByteBuffer map(File file, String key, long size, long lastModified) {
+        synchronized (this) {
+            // 等待期间其他请求可能已经完成映射
+            Entry existing = entries.get(key);
+            if (existing != null && existing.size == size && existing.lastModified == lastModified) {
+                return existing.buffer;
+            }
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != size) {
+                return null; // 正在被修改
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to map file: {}", file, e);
+            return null;
+        }
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if (existing != null && existing.size == size && existing.lastModified == lastModified) {
+                return existing.buffer;
+            }
+            if (existing != null) {
+                remove(key);
+            }
+            entries.put(key, new Entry(lastModified, size, buffer));
+            mappedBytes += size;
+            evict();
+        }
+        return buffer;
+    }
+
+    /**
+     * 移除指定文件的映射，发送时发现文件已被改动后调用
+     */
+    public synchronized void invalidate(File file) {
+        remove(file.getAbsolutePath());
+    }
+
+    /**
+     * 清空缓存，提交新版本后调用
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        mappedBytes = 0;
+    }
+
+    /**
+     * 当前映射的总字节数
+     */
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            mappedBytes -= removed.size;
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (mappedBytes > budget && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            mappedBytes -= eldest.getValue().size;
+            iterator.remove();
+            LOGGER.debug("Evict mapped file: {}", eldest.getKey());
+        }
+    }
+}
@@ -0,0 +1,1077 @@
+package fun.sakuraspark.sakuraupdater.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+/**
+ * 基于 NIO Selector 的 HTTP/1.1 服务器
+ * <p>
+ * 一个事件循环线程负责所有连接的接受、读取请求和写出响应，处理器只在工作线程中生成响应，
+ * 文件内容由事件循环通过 {@link FileChannel#transferTo} 直接写入 socket，发送文件不占用工作线程。
+ * 空闲连接、发送很慢的请求和长时间不读取响应的客户端按超时关闭，大量慢连接不会耗尽线程。
+ * </p>
+ * <p>
+ * 只支持带 Content-Length 的请求体。每个路径单独设置请求体的上限，默认不接受请求体；
+ * 普通路径的请求体完整读入内存后交给处理器，缓冲区随数据到达逐步扩大，
+ * 所有连接正在读取和处理中的请求体总量受全局上限约束，只发请求头的连接不会占用内存。
+ * </p>
+ * <p>
+ * 流式路径（{@link #createStreamingContext}）收到请求头后立即交给处理器，处理器通过
+ * {@link Request#bodyStream()} 边到达边读取请求体。事件循环最多为每个连接缓冲 {@link #STREAM_WINDOW} 字节，
+ * 处理器读取得慢时暂停读取 socket，由 TCP 流量控制让客户端等待。
+ * </p>
+ */
+public class NioHttpServer {
+    private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(NioHttpServer.class);
+    // 请求行和请求头的最大长度
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+    // 所有连接中尚未处理完的请求体的总字节数上限
+    private static final long MAX_BODY_BYTES_IN_FLIGHT = 64L * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    // 流式请求体每个连接最多缓冲的字节数，以及每次读取的大小
+    private static final int STREAM_WINDOW = 256 * 1024;
+    private static final int STREAM_READ_SIZE = 64 * 1024;
+    // 检查超时的间隔
+    private static final long SWEEP_INTERVAL = 1000;
+    private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+
+    /**
+     * 请求处理器，在工作线程中调用
+     */
+    public interface Handler {
+        Response handle(Request request) throws Exception;
+    }
+
+    /**
+     * 完整读取的请求
+     */
+    public static final class Request {
+        public final String method;
+        public final String path;
+        @Nullable
+        public final String query;
+        // 请求头名称统一为小写
+        private final Map<String, String> headers;
+        // 流式路径中为空，请求体从 bodyStream() 读取
+        public final byte[] body;
+        public final InetSocketAddress remoteAddress;
+        @Nullable
+        private final InputStream stream;
+
+        private Request(String method, String path, @Nullable String query, Map<String, String> headers, byte[] body,
+                InetSocketAddress remoteAddress, @Nullable InputStream stream) {
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.headers = headers;
+            this.body = body;
+            this.remoteAddress = remoteAddress;
+            this.stream = stream;
+        }
+
+        @Nullable
+        public String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public String bodyAsString() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * 请求体输入流，流式路径中请求体边到达边读取，只能读取一次；连接中断或超时时读取抛出 IOException
+         */
+        public InputStream bodyStream() {
+            return stream != null ? stream : new ByteArrayInputStream(body);
+        }
+    }
+
+    /**
+     * 响应，内容为内存中的缓冲区或文件通道的一段，文件通道在发送结束后由服务器关闭
+     */
+    public static final class Response {
+        private final int status;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        @Nullable
+        private ByteBuffer buffer;
+        @Nullable
+        private FileChannel file;
+        private long position;
+        private long count;
+        private final List<LongConsumer> completions = new ArrayList<>();
+
+        private Response(int status) {
+            this.status = status;
+        }
+
+        /**
+         * 没有响应体，例如 304、416
+         */
+        public static Response empty(int status) {
+            return new Response(status);
+        }
+
+        public static Response bytes(int status, String contentType, byte[] body) {
+            return buffer(status, contentType, ByteBuffer.wrap(body));
+        }
+
+        public static Response text(int status, String message) {
+            return bytes(status, "text/plain;charset=utf-8", message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * 缓冲区中剩余的内容作为响应体，可以是内存映射的文件
+         */
+        public static Response buffer(int status, String contentType, ByteBuffer body) {
+            Response response = new Response(status);
+            response.headers.put("Content-Type", contentType);
+            response.buffer = body;
+            response.count = body.remaining();
+            return response;
+        }
+
+        /**
+         * 文件的一段作为响应体
+         */
+        public static Response file(int status, String contentType, FileChannel file, long position, long count) {
+            Response response = new Response(status);
+            response.headers.put("Content-Type", contentType);
+            response.file = file;
+            response.position = position;
+            response.count = count;
+            return response;
+        }
+
+        public Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        /**
+         * 响应发送结束或连接中断后调用，参数为实际写出的响应体字节数
+         */
+        public Response onComplete(LongConsumer completion) {
+            completions.add(completion);
+            return this;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final int backlog;
+    private final Executor workers;
+    private final int sendBuffer;
+    private final long timeoutMillis;
+    private final Map<String, Context> contexts = new LinkedHashMap<>();
+    // 已经为请求体分配的字节数
+    private final AtomicLong bodyBytes = new AtomicLong();
+    // 工作线程生成的响应，由事件循环取出发送
+    private final Queue<Connection> responses = new ConcurrentLinkedQueue<>();
+    // 处理器读取了流式请求体、需要恢复读取 socket 的连接
+    private final Queue<Connection> resumes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread loop;
+    private volatile boolean running;
+
+    /**
+     * @param workers 执行处理器的线程池
+     * @param sendBuffer socket 发送缓冲区字节数，0 表示使用系统默认值
+     * @param timeoutMillis 读取请求、写出响应和空闲连接的超时
+     */
+    public NioHttpServer(InetSocketAddress address, int backlog, Executor workers, int sendBuffer,
+            long timeoutMillis) {
+        this.address = address;
+        this.backlog = backlog;
+        this.workers = workers;
+        this.sendBuffer = sendBuffer;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private record Context(Handler handler, long maxBody, boolean streaming) {
+    }
+
+    /**
+     * 注册不接受请求体的处理器，和 HttpServer 一样按最长路径前缀匹配
+     */
+    public void createContext(String prefix, Handler handler) {
+        createContext(prefix, handler, 0);
+    }
+
+    /**
+     * 注册处理器
+     * @param maxBody 请求体的最大字节数，超过时返回 413，0 表示不接受请求体
+     */
+    public void createContext(String prefix, Handler handler, int maxBody) {
+        contexts.put(prefix, new Context(handler, maxBody, false));
+    }
+
+    /**
+     * 注册流式处理器，请求头到达后立即调用，请求体通过 {@link Request#bodyStream()} 读取，不会整体读入内存
+     * @param maxBody 请求体的最大字节数，超过时返回 413
+     */
+    public void createStreamingContext(String prefix, Handler handler, long maxBody) {
+        contexts.put(prefix, new Context(handler, maxBody, true));
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(address, backlog);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        loop = new Thread(this::run, "FileServer-NIO");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (loop != null) {
+            try {
+                loop.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 当前打开的连接数
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    private void run() {
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(SWEEP_INTERVAL);
+                Connection ready;
+                while ((ready = responses.poll()) != null) {
+                    ready.startResponse();
+                }
+                while ((ready = resumes.poll()) != null) {
+                    ready.resumeStream();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        } else if (key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL) {
+                    lastSweep = now;
+                    sweep(now);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                LOGGER.error("NIO server loop failed", e);
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection connection) {
+                    connection.close();
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close NIO server", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (sendBuffer > 0) {
+                    channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+                }
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.incrementAndGet();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to accept connection", e);
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * 关闭超时的连接
+     */
+    private void sweep(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection connection && connection.isTimedOut(now)) {
+                LOGGER.debug("Closing timed out connection from {} in state {}", connection.remote, connection.state);
+                connection.close();
+            }
+        }
+    }
+
+    @Nullable
+    private Context findContext(String path) {
+        Context found = null;
+        int longest = -1;
+        for (Map.Entry<String, Context> context : contexts.entrySet()) {
+            String prefix = context.getKey();
+            if (path.startsWith(prefix) && prefix.length() > longest) {
+                found = context.getValue();
+                longest = prefix.length();
+            }
+        }
+        return found;
+    }
+
+    private enum State {
+        READING_HEAD, READING_BODY, STREAMING, PROCESSING, WRITING
+    }
+
+    /**
+     * 单个连接的状态，除 response 外只在事件循环线程中访问
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final InetSocketAddress remote;
+        private SelectionKey key;
+        private State state = State.READING_HEAD;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // 当前请求
+        private String method;
+        private String target;
+        private Map<String, String> headers;
+        private boolean keepAlive;
+        private String path;
+        @Nullable
+        private String query;
+        @Nullable
+        private Context context;
+        private byte[] body;
+        private int bodyLength;
+        private int bodyRead;
+        // 当前请求体占用的、计入 bodyBytes 的字节数
+        private long bodyReserved;
+        // 流式请求体，以及尚未从 socket 读取的字节数
+        @Nullable
+        private BodyStream stream;
+        private long streamRemaining;
+        // 当前响应，由工作线程写入后通过 responses 队列交给事件循环
+        private volatile Response response;
+        private ByteBuffer head;
+        private long written;
+        private boolean closeAfterResponse;
+        // 开始读取当前请求的时间，0 表示还没有收到任何字节
+        private long requestStart;
+        // 最后一次读写成功的时间
+        private long lastActivity = System.currentTimeMillis();
+        private boolean closed;
+
+        private Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remote = (InetSocketAddress) channel.getRemoteAddress();
+        }
+
+        private boolean isTimedOut(long now) {
+            return switch (state) {
+                // 请求必须在超时内完整到达，避免客户端一点点发送占住连接
+                case READING_HEAD, READING_BODY -> requestStart != 0
+                        ? now - requestStart > timeoutMillis
+                        : now - lastActivity > timeoutMillis;
+                // 流式请求体可以很大，只要求持续有进展；因处理器读取慢而暂停时不计超时
+                case STREAMING -> !stream.paused && now - lastActivity > timeoutMillis;
+                // 响应在超时内没有任何进展，客户端不再读取
+                case WRITING -> now - lastActivity > timeoutMillis;
+                case PROCESSING -> false;
+            };
+        }
+
+        private void onReadable() {
+            try {
+                if (state == State.READING_BODY) {
+                    readBody();
+                    return;
+                }
+                if (state == State.STREAMING) {
+                    readStream();
+                    return;
+                }
+                if (state != State.READING_HEAD) {
+                    // 同一轮事件中响应已经开始发送
+                    return;
+                }
+                if (!in.hasRemaining()) {
+                    in = grow(in);
+                }
+                int n = channel.read(in);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                if (n > 0) {
+                    lastActivity = System.currentTimeMillis();
+                    if (requestStart == 0) {
+                        requestStart = lastActivity;
+                    }
+                    parse();
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Read from {} failed", remote, e);
+                close();
+            }
+        }
+
+        private ByteBuffer grow(ByteBuffer buffer) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_HEADER_SIZE + READ_BUFFER_SIZE));
+            buffer.flip();
+            larger.put(buffer);
+            return larger;
+        }
+
+        /**
+         * 在已读取的数据中查找完整的请求头
+         */
+        private void parse() throws IOException {
+            int end = indexOf(in, HEADER_END);
+            if (end < 0) {
+                if (in.position() > MAX_HEADER_SIZE) {
+                    reject(431, "Request Header Fields Too Large");
+                }
+                return;
+            }
+            String text = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+            // 请求头之后的数据属于请求体或下一个请求
+            in.flip();
+            in.position(end + HEADER_END.length);
+            in.compact();
+
+            String[] lines = text.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                reject(400, "Bad Request");
+                return;
+            }
+            method = requestLine[0];
+            target = requestLine[1];
+            headers = new LinkedHashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    reject(400, "Bad Request");
+                    return;
+                }
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        lines[i].substring(colon + 1).trim());
+            }
+            String connection = headers.getOrDefault("connection", "").toLowerCase(Locale.ROOT);
+            keepAlive = "HTTP/1.1".equals(requestLine[2])
+                    ? !connection.contains("close")
+                    : connection.contains("keep-alive");
+
+            if (headers.containsKey("transfer-encoding")) {
+                reject(411, "Length Required");
+                return;
+            }
+            long length;
+            try {
+                length = Long.parseLong(headers.getOrDefault("content-length", "0"));
+            } catch (NumberFormatException e) {
+                reject(400, "Bad Request");
+                return;
+            }
+            if (length < 0) {
+                reject(400, "Bad Request");
+                return;
+            }
+            int question = target.indexOf('?');
+            path = question < 0 ? target : target.substring(0, question);
+            query = question < 0 ? null : target.substring(question + 1);
+            context = findContext(path);
+            if (length > (context != null ? context.maxBody : 0)) {
+                reject(413, "Payload Too Large");
+                return;
+            }
+            if (context != null && context.streaming) {
+                startStream(length);
+                return;
+            }
+            bodyLength = (int) length;
+            bodyRead = 0;
+            body = new byte[0];
+            // 只为已经到达的数据分配空间
+            in.flip();
+            int available = Math.min(in.remaining(), bodyLength);
+            if (!ensureBody(available)) {
+                return;
+            }
+            in.get(body, 0, available);
+            bodyRead = available;
+            in.compact();
+            if (bodyRead < bodyLength) {
+                state = State.READING_BODY;
+                return;
+            }
+            dispatch();
+        }
+
+        private void readBody() throws IOException {
+            if (bodyRead == body.length && !ensureBody(bodyRead + 1)) {
+                return;
+            }
+            int n = channel.read(ByteBuffer.wrap(body, bodyRead, body.length - bodyRead));
+            if (n < 0) {
+                close();
+                return;
+            }
+            if (n > 0) {
+                lastActivity = System.currentTimeMillis();
+                bodyRead += n;
+                if (bodyRead == bodyLength) {
+                    dispatch();
+                }
+            }
+        }
+
+        /**
+         * 流式路径：把已经收到的部分请求体放入流中，交给工作线程处理，之后继续读取剩余部分
+         */
+        private void startStream(long length) {
+            if (bodyBytes.addAndGet(STREAM_WINDOW) > MAX_BODY_BYTES_IN_FLIGHT) {
+                bodyBytes.addAndGet(-STREAM_WINDOW);
+                LOGGER.warn("Rejecting request body from {}, too many request bodies in flight", remote);
+                reject(503, "Service Unavailable");
+                return;
+            }
+            bodyReserved = STREAM_WINDOW;
+            stream = new BodyStream(this);
+            streamRemaining = length;
+            in.flip();
+            int available = (int) Math.min(in.remaining(), length);
+            if (available > 0) {
+                byte[] first = new byte[available];
+                in.get(first);
+                stream.push(first);
+                streamRemaining -= available;
+            }
+            in.compact();
+            BodyStream current = stream;
+            if (streamRemaining == 0) {
+                current.end();
+            }
+            Request request = new Request(method, path, query, headers, new byte[0], remote, current);
+            long reserved = bodyReserved;
+            bodyReserved = 0;
+            if (streamRemaining > 0) {
+                state = State.STREAMING;
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                state = State.PROCESSING;
+                key.interestOps(0);
+            }
+            Handler handler = context.handler;
+            try {
+                workers.execute(() -> {
+                    Response result;
+                    try {
+                        result = handler.handle(request);
+                    } catch (Exception e) {
+                        LOGGER.error("Error handling {} {}", request.method, request.path, e);
+                        result = Response.text(500, "Internal Server Error");
+                    } finally {
+                        bodyBytes.addAndGet(-reserved);
+                    }
+                    complete(result);
+                });
+            } catch (RejectedExecutionException e) {
+                bodyBytes.addAndGet(-reserved);
+                current.fail(new IOException("Request rejected"));
+                complete(Response.text(503, "Service Unavailable"));
+            }
+        }
+
+        /**
+         * 读取流式请求体，缓冲已满时暂停，处理器读取后由 {@link #resumeStream} 恢复
+         */
+        private void readStream() throws IOException {
+            BodyStream current = stream;
+            if (current.buffered.get() >= STREAM_WINDOW) {
+                current.paused = true;
+                key.interestOps(0);
+                // 设置暂停标记后再检查一次，避免与处理器同时读取时错过恢复
+                if (current.buffered.get() < STREAM_WINDOW) {
+                    resumeStream();
+                }
+                return;
+            }
+            byte[] chunk = new byte[(int) Math.min(STREAM_READ_SIZE, streamRemaining)];
+            int n = channel.read(ByteBuffer.wrap(chunk));
+            if (n < 0) {
+                close();
+                return;
+            }
+            if (n > 0) {
+                lastActivity = System.currentTimeMillis();
+                current.push(n == chunk.length ? chunk : Arrays.copyOf(chunk, n));
+                streamRemaining -= n;
+                if (streamRemaining == 0) {
+                    current.end();
+                    state = State.PROCESSING;
+                    key.interestOps(0);
+                }
+            }
+        }
+
+        /**
+         * 处理器读取后恢复读取 socket，在事件循环中调用
+         */
+        private void resumeStream() {
+            BodyStream current = stream;
+            if (closed || state != State.STREAMING || current == null || current.buffered.get() >= STREAM_WINDOW) {
+                return;
+            }
+            current.paused = false;
+            lastActivity = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * 扩大请求体缓冲区到至少 needed 字节，每次至少翻倍，不超过声明的长度
+         * @return 超过全局上限时返回 false，此时已经返回 503
+         */
+        private boolean ensureBody(int needed) {
+            if (needed <= body.length) {
+                return true;
+            }
+            int capacity = (int) Math.min(bodyLength,
+                    Math.max(needed, Math.max(body.length * 2L, READ_BUFFER_SIZE)));
+            long delta = capacity - body.length;
+            if (bodyBytes.addAndGet(delta) > MAX_BODY_BYTES_IN_FLIGHT) {
+                bodyBytes.addAndGet(-delta);
+                LOGGER.warn("Rejecting request body from {}, too many request bodies in flight", remote);
+                reject(503, "Service Unavailable");
+                return false;
+            }
+            bodyReserved += delta;
+            body = Arrays.copyOf(body, capacity);
+            return true;
+        }
+
+        /**
+         * 归还当前请求体占用的全局额度
+         */
+        private void releaseBody() {
+            if (bodyReserved > 0) {
+                bodyBytes.addAndGet(-bodyReserved);
+                bodyReserved = 0;
+            }
+            body = null;
+        }
+
+        /**
+         * 请求读取完成，交给工作线程处理，处理期间不再读取该连接
+         */
+        private void dispatch() {
+            state = State.PROCESSING;
+            key.interestOps(0);
+            byte[] requestBody = body.length == bodyLength ? body : Arrays.copyOf(body, bodyLength);
+            Request request = new Request(method, path, query, headers, requestBody, remote, null);
+            // 请求体在处理器返回后才释放额度
+            long reserved = bodyReserved;
+            bodyReserved = 0;
+            body = null;
+            if (context == null) {
+                bodyBytes.addAndGet(-reserved);
+                complete(Response.text(404, "Not Found"));
+                return;
+            }
+            Handler handler = context.handler;
+            try {
+                workers.execute(() -> {
+                    Response result;
+                    try {
+                        result = handler.handle(request);
+                    } catch (Exception e) {
+                        LOGGER.error("Error handling {} {}", request.method, request.path, e);
+                        result = Response.text(500, "Internal Server Error");
+                    } finally {
+                        bodyBytes.addAndGet(-reserved);
+                    }
+                    complete(result);
+                });
+            } catch (RejectedExecutionException e) {
+                bodyBytes.addAndGet(-reserved);
+                complete(Response.text(503, "Service Unavailable"));
+            }
+        }
+
+        /**
+         * 响应生成完成，可以在任意线程调用
+         */
+        private void complete(Response result) {
+            response = result;
+            responses.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * 在事件循环中开始发送响应
+         */
+        private void startResponse() {
+            Response current = response;
+            if (closed) {
+                finish(current, 0);
+                return;
+            }
+            if (stream != null) {
+                // 处理器没有读完流式请求体就返回了响应，剩余的请求体无法跳过，发送后关闭连接
+                if (state == State.STREAMING) {
+                    closeAfterResponse = true;
+                }
+                stream.fail(new IOException("Response already sent"));
+                stream = null;
+            }
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("HTTP/1.1 ").append(current.status).append(' ').append(reason(current.status)).append("\r\n");
+            for (Map.Entry<String, String> header : current.headers.entrySet()) {
+                sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            boolean bodyAllowed = current.status != 204 && current.status != 304 && !"HEAD".equals(method);
+            if (bodyAllowed) {
+                sb.append("Content-Length: ").append(current.count).append("\r\n");
+            } else {
+                current.buffer = null;
+                closeQuietly(current.file);
+                current.file = null;
+            }
+            if (!keepAlive || closeAfterResponse) {
+                sb.append("Connection: close\r\n");
+            }
+            sb.append("\r\n");
+            head = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+            written = 0;
+            state = State.WRITING;
+            lastActivity = System.currentTimeMillis();
+            onWritable();
+        }
+
+        private void onWritable() {
+            Response current = response;
+            try {
+                if (!write(current)) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            } catch (IOException | InternalError e) {
+                // InternalError 表示映射的文件在发送过程中被截断
+                LOGGER.debug("Write to {} failed", remote, e);
+                close();
+                return;
+            }
+            finish(current, written);
+            response = null;
+            if (!keepAlive || closeAfterResponse) {
+                close();
+                return;
+            }
+            // 准备读取下一个请求，已经收到的流水线请求立即处理
+            state = State.READING_HEAD;
+            requestStart = 0;
+            key.interestOps(SelectionKey.OP_READ);
+            if (in.position() > 0) {
+                requestStart = System.currentTimeMillis();
+                try {
+                    parse();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * 尽量写出响应，socket 缓冲区满时返回 false 等待可写
+         */
+        private boolean write(Response current) throws IOException {
+            long progress = 0;
+            try {
+                if (head.hasRemaining()) {
+                    int headBefore = head.remaining();
+                    if (current.buffer != null) {
+                        // 响应头和内存中的响应体合并为一次系统调用
+                        progress = channel.write(new ByteBuffer[] { head, current.buffer });
+                        written += progress - (headBefore - head.remaining());
+                    } else {
+                        progress = channel.write(head);
+                    }
+                    if (head.hasRemaining()) {
+                        return false;
+                    }
+                }
+                if (current.buffer != null) {
+                    while (current.buffer.hasRemaining()) {
+                        int n = channel.write(current.buffer);
+                        if (n == 0) {
+                            return false;
+                        }
+                        progress += n;
+                        written += n;
+                    }
+                } else if (current.file != null) {
+                    while (written < current.count) {
+                        long n = current.file.transferTo(current.position + written, current.count - written,
+                                channel);
+                        if (n == 0) {
+                            // 文件被截断时也会返回 0，由写超时关闭连接
+                            return false;
+                        }
+                        progress += n;
+                        written += n;
+                    }
+                }
+                return true;
+            } finally {
+                if (progress > 0) {
+                    lastActivity = System.currentTimeMillis();
+                }
+            }
+        }
+
+        /**
+         * 在响应头之前就出错，返回错误并关闭连接
+         */
+        private void reject(int status, String message) {
+            releaseBody();
+            closeAfterResponse = true;
+            state = State.PROCESSING;
+            key.interestOps(0);
+            complete(Response.text(status, message));
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connections.decrementAndGet();
+            releaseBody();
+            if (stream != null) {
+                stream.fail(new IOException("Connection closed"));
+            }
+            key.cancel();
+            closeQuietly(channel);
+            Response current = response;
+            if (current != null && state == State.WRITING) {
+                response = null;
+                finish(current, written);
+            }
+        }
+    }
+
+    /**
+     * 流式请求体，事件循环放入数据，工作线程读取
+     */
+    private final class BodyStream extends InputStream {
+        private static final byte[] END = new byte[0];
+        private final Connection connection;
+        private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+        // 已经放入、尚未被读取的字节数
+        private final AtomicInteger buffered = new AtomicInteger();
+        // 事件循环因缓冲已满暂停读取
+        private volatile boolean paused;
+        @Nullable
+        private volatile IOException failure;
+        @Nullable
+        private byte[] current;
+        private int offset;
+
+        private BodyStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        private void push(byte[] chunk) {
+            buffered.addAndGet(chunk.length);
+            chunks.add(chunk);
+        }
+
+        private void end() {
+            chunks.add(END);
+        }
+
+        /**
+         * 请求体不会再到达，之后的读取抛出异常
+         */
+        private void fail(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            chunks.add(END);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current == null || offset == current.length) {
+                if (current == END) {
+                    return -1;
+                }
+                byte[] next;
+                try {
+                    next = chunks.poll(timeoutMillis * 2, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading request body");
+                }
+                if (next == null) {
+                    throw new SocketTimeoutException("Timed out reading request body");
+                }
+                if (next == END && failure != null) {
+                    chunks.add(END);
+                    throw failure;
+                }
+                current = next;
+                offset = 0;
+                if (next.length > 0 && buffered.addAndGet(-next.length) < STREAM_WINDOW / 2 && paused) {
+                    resumes.add(connection);
+                    selector.wakeup();
+                }
+            }
+            int n = Math.min(len, current.length - offset);
+            System.arraycopy(current, offset, b, off, n);
+            offset += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.length - offset;
+        }
+    }
+
+    /**
+     * 关闭响应的文件并通知发送结束
+     */
+    private static void finish(Response response, long written) {
+        closeQuietly(response.file);
+        for (LongConsumer completion : response.completions) {
+            try {
+                completion.accept(written);
+            } catch (RuntimeException e) {
+                LOGGER.error("Response completion failed", e);
+            }
+        }
+    }
+
+    private static void closeQuietly(@Nullable AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            LOGGER.debug("Failed to close {}", closeable, e);
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] pattern) {
+        byte[] array = buffer.array();
+        int limit = buffer.position() - pattern.length;
+        outer:
+        for (int i = 0; i <= limit; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (array[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static String reason(int status) {
+        return switch (status) {
+            case 200 -> "OK";
+            case 206 -> "Partial Content";
+            case 304 -> "Not Modified";
+            case 400 -> "Bad Request";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 411 -> "Length Required";
+            case 413 -> "Payload Too Large";
+            case 416 -> "Range Not Satisfiable";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 503 -> "Service Unavailable";
+            default -> "Unknown";
+        };
+    }
+}
@@ -0,0 +1,225 @@
+package fun.sakuraspark.sakuraupdater.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+import fun.sakuraspark.sakuraupdater.config.DataConfig.Data;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.FileData;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.PathData;
+import fun.sakuraspark.sakuraupdater.config.IGetServerConfig;
+import fun.sakuraspark.sakuraupdater.utils.Delta;
+import fun.sakuraspark.sakuraupdater.utils.MD5;
+
+/**
+ * 版本间的差分补丁
+ * <p>
+ * 提交新版本时，同步目录中的旧文件已经被覆盖，因此每次提交都会把较大的文件按 MD5 复制到 objects 目录，
+ * 下一次提交时以此为旧版本内容，为目标路径不变但内容改变的文件生成补丁，保存为 patches/{旧md5}-{新md5}.patch。
+ * 只保留最新版本引用的对象，以及结果仍被最新版本使用的补丁。
+ * </p>
+ * <p>
+ * 生成补丁需要读入新旧文件，提交时通过 {@link #updateAsync} 在后台单线程按提交顺序执行，
+ * 提交命令不必等待；补丁生成之前客户端请求不到补丁，会回退到完整下载。
+ * 后台线程属于实例，由持有它的 {@link FileServer} 在关闭时调用 {@link #shutdown}。
+ * </p>
+ */
+public class PatchStore {
+    private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(PatchStore.class);
+    // 生成补丁需要把新旧文件和索引读入内存，更大的文件由切块下载处理
+    private static final long MAX_SIZE = 64L * 1024 * 1024;
+    // 补丁超过新文件该比例时不值得使用
+    private static final double MAX_RATIO = 0.5;
+    private static final String PATCH_SUFFIX = ".patch";
+    // 后台生成补丁的线程，单线程保证同一时间只有一个任务读写 delta 目录
+    private final ExecutorService generator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PatchStore-Generator");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final File objectsDir;
+    private final File patchesDir;
+
+    public PatchStore() {
+        this(new File(IGetServerConfig.getCacheDir(), "delta"));
+    }
+
+    public PatchStore(File dir) {
+        this.objectsDir = new File(dir, "objects");
+        this.patchesDir = new File(dir, "patches");
+    }
+
+    /**
+     * 获取从 oldMd5 到 newMd5 的补丁
+     * @return 不存在时返回 null
+     */
+    @Nullable
+    public File getPatch(String oldMd5, String newMd5) {
+        File file = new File(patchesDir, oldMd5 + "-" + newMd5 + PATCH_SUFFIX);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * 在后台执行 {@link #update}，立即返回
+     */
+    public void updateAsync(@Nullable Data previous, List<PathData> current) {
+        List<PathData> snapshot = List.copyOf(current);
+        generator.execute(() -> {
+            try {
+                update(previous, snapshot);
+            } catch (Exception e) {
+                LOGGER.error("Failed to generate delta patches", e);
+            }
+        });
+    }
+
+    /**
+     * 停止后台线程，丢弃排队的任务，正在生成的补丁在当前文件完成后停止
+     */
+    public void shutdown() {
+        generator.shutdownNow();
+    }
+
+    /**
+     * 提交新版本后调用，生成相对上一版本的补丁并保存本版本的对象
+     * @param previous 上一版本，没有时为 null
+     * @param current 新提交的文件列表
+     * @return 新生成的补丁数量
+     */
+    public int update(@Nullable Data previous, List<PathData> current) {
+        if (!objectsDir.exists() && !objectsDir.mkdirs() || !patchesDir.exists() && !patchesDir.mkdirs()) {
+            LOGGER.error("Failed to create delta directories in {}", objectsDir.getParentFile());
+            return 0;
+        }
+        Map<String, String> previousMd5 = new HashMap<>();
+        if (previous != null && previous.paths != null) {
+            for (PathData path : previous.paths) {
+                for (FileData file : path.files) {
+                    previousMd5.put(file.targetPath, file.md5);
+                }
+            }
+        }
+
+        Set<String> keepObjects = new HashSet<>();
+        Set<String> currentMd5 = new HashSet<>();
+        int generated = 0;
+        for (PathData path : current) {
+            for (FileData fileData : path.files) {
+                // 服务器已关闭，未处理的对象还没保存，不能清理
+                if (Thread.currentThread().isInterrupted()) {
+                    LOGGER.info("Delta patch generation interrupted, {} new patches", generated);
+                    return generated;
+                }
+                currentMd5.add(fileData.md5);
+                File source = new File(fileData.sourcePath);
+                long size = source.length();
+                if (size < Delta.MIN_SIZE || size > MAX_SIZE || !keepObjects.add(fileData.md5)) {
+                    continue;
+                }
+                String oldMd5 = previousMd5.get(fileData.targetPath);
+                if (oldMd5 != null && !oldMd5.equals(fileData.md5) && getPatch(oldMd5, fileData.md5) == null) {
+                    try {
+                        if (createPatch(oldMd5, fileData, source)) {
+                            generated++;
+                        }
+                    } catch (IOException | OutOfMemoryError e) {
+                        LOGGER.warn("Failed to create patch for {}", fileData.targetPath, e);
+                    }
+                }
+                try {
+                    storeObject(fileData, source);
+                } catch (IOException e) {
+                    keepObjects.remove(fileData.md5);
+                    LOGGER.warn("Failed to store {} for future patches", fileData.sourcePath, e);
+                }
+            }
+        }
+        prune(objectsDir, keepObjects::contains);
+        // 文件名为 {旧md5}-{新md5}.patch，新内容仍在使用就保留，落后多个版本的客户端也能用上
+        prune(patchesDir, name -> {
+            int dash = name.indexOf('-');
+            int dot = name.indexOf('.');
+            return dash > 0 && dot > dash && currentMd5.contains(name.substring(dash + 1, dot));
+        });
+        LOGGER.info("Delta patches updated, {} new patches", generated);
+        return generated;
+    }
+
+    /**
+     * 生成单个补丁
+     * @return 是否生成了补丁，旧对象不存在或补丁太大时返回 false
+     */
+    private boolean createPatch(String oldMd5, FileData fileData, File source) throws IOException {
+        File oldObject = new File(objectsDir, oldMd5);
+        if (!oldObject.isFile()) {
+            return false;
+        }
+        byte[] oldBytes = Files.readAllBytes(oldObject.toPath());
+        byte[] newBytes = Files.readAllBytes(source.toPath());
+        if (!fileData.md5.equals(MD5.calculateMD5(newBytes))) {
+            LOGGER.warn("File {} changed after it was hashed, skip patch", fileData.sourcePath);
+            return false;
+        }
+        File patch = new File(patchesDir, oldMd5 + "-" + fileData.md5 + PATCH_SUFFIX);
+        File temp = new File(patchesDir, patch.getName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+            Delta.diff(oldBytes, newBytes, out);
+        }
+        if (temp.length() > newBytes.length * MAX_RATIO) {
+            Files.delete(temp.toPath());
+            LOGGER.debug("Skip patch for {}, {} bytes is too large", fileData.targetPath, temp.length());
+            return false;
+        }
+        Files.move(temp.toPath(), patch.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        LOGGER.debug("Created patch for {}: {} -> {} bytes", fileData.targetPath, newBytes.length, patch.length());
+        return true;
+    }
+
+    /**
+     * 复制文件内容到 objects 目录，供下一次提交生成补丁
+     */
+    private void storeObject(FileData fileData, File source) throws IOException {
+        File object = new File(objectsDir, fileData.md5);
+        if (object.isFile()) {
+            return;
+        }
+        File temp = new File(objectsDir, fileData.md5 + ".tmp");
+        Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (!fileData.md5.equals(MD5.calculateMD5(temp))) {
+            Files.delete(temp.toPath());
+            throw new IOException("File changed after it was hashed");
+        }
+        Files.move(temp.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 删除目录中不需要保留的文件
+     */
+    private static void prune(File dir, Predicate<String> keep) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!keep.test(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package fun.sakuraspark.sakuraupdater.network;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+import com.google.gson.Gson;
+
+import fun.sakuraspark.sakuraupdater.config.DataConfig;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.Data;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.FileData;
+import fun.sakuraspark.sakuraupdater.config.DataConfig.PathData;
+import fun.sakuraspark.sakuraupdater.config.IGetServerConfig;
+import fun.sakuraspark.sakuraupdater.utils.SingleFlight;
+
+/**
+ * 中继模式，作为上游 SakuraUpdater 服务器的区域缓存节点
+ * <p>
+ * 定时拉取上游的最新清单写入本地数据库，客户端看到的版本和清单与上游一致。
+ * 文件按 MD5 缓存在 objects 目录，第一次被请求时从上游下载，或者在发现新版本后预先下载，
+ * 同一文件的并发请求只会向上游下载一次。差分补丁同样按需从上游获取并缓存。
+ * </p>
+ */
+public class Relay {
+    private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(Relay.class);
+    private static final Gson GSON = new Gson();
+    // 预先下载使用的线程数，避免新版本发布时占满上游的下载数
+    private static final int PREFETCH_THREADS = 2;
+
+    private final FileClient upstream;
+    private final String upstreamAddress;
+    private final boolean prefetch;
+    private final long pollInterval;
+    private final File objectsDir;
+    private final File patchesDir;
+    // 同一对象的并发请求等待同一次下载
+    private final SingleFlight<String, Boolean> downloads = new SingleFlight<>("relay_fetch");
+
+    private ScheduledExecutorService poller;
+    private ExecutorService prefetcher;
+    @Nullable
+    private Runnable onPrefetched;
+
+    /**
+     * @param host 上游服务器地址
+     * @param port 上游服务器端口
+     * @param prefetch 发现新版本后是否立即下载全部文件
+     * @param pollInterval 检查上游新版本的间隔，秒
+     */
+    public Relay(String host, int port, boolean prefetch, long pollInterval) {
+        File dir = new File(IGetServerConfig.getCacheDir(), "relay");
+        this.objectsDir = new File(dir, "objects");
+        this.patchesDir = new File(dir, "patches");
+        this.upstream = new FileClient(host, port, new File(dir, "manifest.json"));
+        this.upstreamAddress = host + ":" + port;
+        this.prefetch = prefetch;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * 开始定时同步上游
+     * @param onPrefetched 新版本的文件全部下载完成后调用，用于重建索引和预压缩文件
+     */
+    public void start(@Nullable Runnable onPrefetched) {
+        this.onPrefetched = onPrefetched;
+        objectsDir.mkdirs();
+        patchesDir.mkdirs();
+        AtomicInteger counter = new AtomicInteger();
+        prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "Relay-Prefetch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Relay-Poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::sync, 0, pollInterval, TimeUnit.SECONDS);
+        LOGGER.info("Relay mode enabled, upstream {}, poll interval {}s, prefetch {}", upstreamAddress,
+                pollInterval, prefetch);
+    }
+
+    public void shutdown() {
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+        if (prefetcher != null) {
+            prefetcher.shutdownNow();
+        }
+    }
+
+    /**
+     * 同步上游的最新版本，版本新增或内容变化时写入本地数据库
+     */
+    public void sync() {
+        try {
+            if (!upstream.heartbeat()) {
+                LOGGER.warn("Relay upstream {} is not reachable", upstreamAddress);
+                return;
+            }
+            Data latest = upstream.getUpdateList();
+            if (latest == null || latest.version == null || !store(latest)) {
+                return;
+            }
+            LOGGER.info("Relay mirrored version {} from {}", latest.version, upstreamAddress);
+            prune(latest);
+            if (prefetch) {
+                prefetch(latest);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to sync with relay upstream {}", upstreamAddress, e);
+        }
+    }
+
+    /**
+     * 从上游获取本地还没有的指定版本，客户端请求推送模式的旧版本清单时使用
+     * @return 本地是否已有该版本
+     */
+    public boolean mirror(String version) {
+        if (DataConfig.getDataByVersion(version) != null) {
+            return true;
+        }
+        Data data = upstream.getUpdateList(version);
+        if (data == null || !version.equals(data.version)) {
+            return false;
+        }
+        store(data);
+        return true;
+    }
+
+    /**
+     * 写入本地数据库，版本的时间沿用上游，本地的版本顺序与上游一致
+     * @return 是否有变化
+     */
+    private boolean store(Data data) {
+        Data local = DataConfig.getDataByVersion(data.version);
+        if (local == null) {
+            return DataConfig.addData(data.version, data.time, data.description, data.paths);
+        }
+        if (Objects.equals(local.time, data.time) && Objects.equals(local.description, data.description)
+                && GSON.toJson(local.paths).equals(GSON.toJson(data.paths))) {
+            return false;
+        }
+        return DataConfig.editData(data.version, data.time, data.description, data.paths);
+    }
+
+    /**
+     * 文件在本地缓存中的位置，不保证已经存在
+     */
+    public File objectFile(FileData fileData) {
+        return new File(objectsDir, fileData.md5);
+    }
+
+    /**
+     * 确保文件已经缓存到本地，不存在时从上游下载并校验 MD5
+     * @return 是否可用
+     */
+    public boolean fetch(FileData fileData) {
+        File object = objectFile(fileData);
+        if (object.isFile()) {
+            return true;
+        }
+        return once(fileData.md5, () -> upstream.downloadFile(fileData.sourcePath, object.getPath(), fileData.md5));
+    }
+
+    /**
+     * 获取差分补丁，本地没有时从上游下载，上游也没有时返回 null
+     */
+    @Nullable
+    public File fetchPatch(String oldMd5, String newMd5) {
+        String name = oldMd5 + "-" + newMd5;
+        File patch = new File(patchesDir, name + ".patch");
+        if (patch.isFile()) {
+            return patch;
+        }
+        boolean ok = once("patch:" + name, () -> upstream.downloadTo("/patch/" + oldMd5 + "/" + newMd5, patch));
+        return ok ? patch : null;
+    }
+
+    /**
+     * 同一个键同时只执行一次下载，其他调用等待并共享结果
+     */
+    private boolean once(String key, BooleanSupplier download) {
+        return downloads.execute(key, () -> {
+            try {
+                return download.getAsBoolean();
+            } catch (RuntimeException e) {
+                LOGGER.error("Relay failed to fetch {}", key, e);
+                return false;
+            }
+        });
+    }
+
+    /**
+     * 在后台下载新版本的全部文件
+     */
+    private void prefetch(Data data) {
+        List<FileData> files = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (PathData pathData : data.paths) {
+            for (FileData fileData : pathData.files) {
+                if (seen.add(fileData.md5) && !objectFile(fileData).isFile()) {
+                    files.add(fileData);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+        LOGGER.info("Relay prefetching {} files of version {}", files.size(), data.version);
+        AtomicInteger failed = new AtomicInteger();
+        CompletableFuture<?>[] tasks = files.stream()
+                .map(fileData -> CompletableFuture.runAsync(() -> {
+                    if (!fetch(fileData)) {
+                        failed.incrementAndGet();
+                    }
+                }, prefetcher))
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(tasks).whenComplete((result, error) -> {
+            LOGGER.info("Relay prefetch of version {} finished, {} failed", data.version, failed.get());
+            if (onPrefetched != null) {
+                onPrefetched.run();
+            }
+        });
+    }
+
+    /**
+     * 删除最新版本不再使用的对象和补丁
+     */
+    private void prune(Data latest) {
+        Set<String> keep = new HashSet<>();
+        for (PathData pathData : latest.paths) {
+            for (FileData fileData : pathData.files) {
+                keep.add(fileData.md5);
+            }
+        }
+        File[] objects = objectsDir.listFiles();
+        if (objects != null) {
+            for (File object : objects) {
+                String name = object.getName();
+                // 下载中的临时文件属于仍在使用的对象时保留
+                String target = FileClient.partTarget(name);
+                String md5 = target != null ? target : name;
+                if (!keep.contains(md5)) {
+                    object.delete();
+                }
+            }
+        }
+        File[] patches = patchesDir.listFiles();
+        if (patches != null) {
+            for (File patch : patches) {
+                String name = patch.getName();
+                int dash = name.indexOf('-');
+                int dot = name.indexOf('.');
+                if (dash <= 0 || dot <= dash || !keep.contains(name.substring(dash + 1, dot))) {
+                    patch.delete();
+                }
+            }
+        }
+    }
+}
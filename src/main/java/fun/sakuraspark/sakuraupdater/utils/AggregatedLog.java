@@ -0,0 +1,49 @@
+package fun.sakuraspark.sakuraupdater.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+
+/**
+ * 聚合高频访问日志
+ * <p>
+ * 心跳等由每个客户端定时调用的接口，如果每次都输出 INFO 日志，客户端多时日志会被刷屏，写日志也会拖慢请求。
+ * 每次调用只计数并输出 DEBUG 日志，每个间隔最多输出一条带调用次数的 INFO 汇总。
+ * 第一次调用立即输出，启动后仍然能看到接口是否被访问。
+ * </p>
+ */
+public class AggregatedLog {
+    private final Logger logger;
+    private final String message;
+    private final long intervalNanos;
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong lastReport;
+
+    /**
+     * @param message 日志内容，汇总时在后面加上次数
+     * @param intervalSeconds 两条汇总之间的最短间隔
+     */
+    public AggregatedLog(Logger logger, String message, long intervalSeconds) {
+        this.logger = logger;
+        this.message = message;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        this.lastReport = new AtomicLong(System.nanoTime() - intervalNanos);
+    }
+
+    /**
+     * 记录一次调用
+     */
+    public void record() {
+        count.increment();
+        logger.debug(message);
+        long now = System.nanoTime();
+        long last = lastReport.get();
+        // 只有一个线程能更新时间并输出汇总
+        if (now - last >= intervalNanos && lastReport.compareAndSet(last, now)) {
+            logger.info("{} ({} times in the last {}s)", message, count.sumThenReset(),
+                    TimeUnit.NANOSECONDS.toSeconds(now - last));
+        }
+    }
+}
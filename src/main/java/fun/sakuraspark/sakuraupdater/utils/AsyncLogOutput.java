@@ -0,0 +1,206 @@
+package fun.sakuraspark.sakuraupdater.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 异步日志输出
+ * <p>
+ * 写日志的线程只把一行日志放入有界的环形缓冲区，由单独的写线程批量写入控制台和日志文件，
+ * 每批只刷新一次，处理请求的线程不会因为控制台或磁盘 I/O 互相等待。
+ * 缓冲区满时按策略处理：BLOCK 等待写线程腾出空间，不丢日志；DROP 丢弃新日志并在之后记录丢弃的行数。
+ * </p>
+ * <p>
+ * 独立服务端在加载日志框架之前调用，因此不能使用 slf4j，也不依赖其他类。
+ * </p>
+ */
+public final class AsyncLogOutput {
+    // 每批最多写出的日志行数
+    private static final int MAX_BATCH = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 缓冲区满时的处理策略
+     */
+    public enum Policy {
+        BLOCK, DROP
+    }
+
+    private record Line(OutputStream console, byte[] bytes) {
+    }
+
+    // 通知写线程退出
+    private static final Line CLOSE = new Line(OutputStream.nullOutputStream(), new byte[0]);
+
+    private final ArrayBlockingQueue<Line> ring;
+    private final Policy policy;
+    private final OutputStream file;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    // 写线程和关闭后的直接写出共用
+    private final Object lock = new Object();
+    private volatile boolean closed = false;
+
+    /**
+     * @param path 日志文件
+     * @param capacity 缓冲区可以容纳的日志行数
+     */
+    public AsyncLogOutput(Path path, int capacity, Policy policy) throws IOException {
+        Path parent = path.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.file = new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE);
+        this.ring = new ArrayBlockingQueue<>(Math.max(capacity, 16));
+        this.policy = policy;
+        this.writer = new Thread(this::run, "Log-Writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * 创建同时写入控制台和日志文件的输出流，用于替换 System.out / System.err
+     * @param console 控制台输出，由写线程批量写入并刷新
+     */
+    public PrintStream stream(OutputStream console) {
+        OutputStream bufferedConsole = new BufferedOutputStream(console, BUFFER_SIZE);
+        OutputStream line = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (len > 0) {
+                    offer(new Line(bufferedConsole, Arrays.copyOfRange(b, off, off + len)));
+                }
+            }
+        };
+        // 自动刷新的 PrintStream 每次 println 刷新一次，加上缓冲后一行日志只占缓冲区的一项
+        return new PrintStream(new BufferedOutputStream(line, 8192), true, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 因缓冲区满被丢弃、还没有记录到日志中的行数
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void offer(Line line) {
+        if (closed) {
+            // 关闭后的日志直接写出，保留退出过程中的日志
+            synchronized (lock) {
+                writeBatch(List.of(line));
+            }
+            return;
+        }
+        if (policy == Policy.DROP) {
+            if (!ring.offer(line)) {
+                dropped.incrementAndGet();
+            }
+            return;
+        }
+        try {
+            ring.put(line);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void run() {
+        List<Line> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                batch.add(ring.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            ring.drainTo(batch, MAX_BATCH - 1);
+            boolean stop = batch.remove(CLOSE);
+            synchronized (lock) {
+                writeBatch(batch);
+            }
+            batch.clear();
+            if (stop) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 写出一批日志，每个输出只刷新一次
+     */
+    private void writeBatch(List<Line> batch) {
+        Map<OutputStream, Boolean> consoles = new IdentityHashMap<>();
+        for (Line line : batch) {
+            try {
+                line.console.write(line.bytes);
+                consoles.put(line.console, Boolean.TRUE);
+            } catch (IOException ignored) {
+                // 控制台不可用时仍然写入文件
+            }
+            try {
+                file.write(line.bytes);
+            } catch (IOException ignored) {
+                // 磁盘写满等情况下只能放弃文件日志
+            }
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            byte[] note = ("[Log-Writer] " + lost + " log lines were dropped because the log buffer was full"
+                    + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+            try {
+                file.write(note);
+            } catch (IOException ignored) {
+                // 同上
+            }
+        }
+        for (OutputStream console : consoles.keySet()) {
+            try {
+                console.flush();
+            } catch (IOException ignored) {
+                // 同上
+            }
+        }
+        try {
+            file.flush();
+        } catch (IOException ignored) {
+            // 同上
+        }
+    }
+
+    /**
+     * 写出缓冲区中剩余的日志，之后的日志同步写出，在 JVM 退出时调用
+     */
+    public void close() {
+        closed = true;
+        try {
+            ring.put(CLOSE);
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 关闭前最后一刻放入缓冲区的日志
+        List<Line> rest = new ArrayList<>();
+        ring.drainTo(rest);
+        rest.remove(CLOSE);
+        synchronized (lock) {
+            writeBatch(rest);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package fun.sakuraspark.sakuraupdater.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import fun.sakuraspark.sakuraupdater.config.DataConfig.ChunkData;
+
+/**
+ * 基于内容的文件切块
+ * <p>
+ * 使用 gear 滚动哈希决定块边界：边界只取决于附近的内容，文件中间插入或删除数据后，
+ * 改动位置以外的块仍然相同，客户端只需要下载改动所在的块。
+ * 服务端和客户端必须使用相同的参数，否则切出的块无法对应。
+ * </p>
+ */
+public class Chunker {
+    // 达到该大小的文件才切块，更小的文件整体下载或使用差分补丁
+    public static final long MIN_FILE_SIZE = 16L * 1024 * 1024;
+    private static final int MIN_CHUNK = 256 * 1024;
+    private static final int MAX_CHUNK = 4 * 1024 * 1024;
+    // 平均块大小约为 MIN_CHUNK + 1MB
+    private static final long BOUNDARY_MASK = (1L << 20) - 1;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // splitmix64 生成固定的随机表，保证所有 JDK 上结果一致
+        long seed = 0x5341_4b55_5241_4344L;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private Chunker() {
+        // 工具类，禁止实例化
+    }
+
+    /**
+     * 切分文件
+     * @param fileDigest 不为 null 时同时用整个文件的内容更新该摘要，避免再读一遍文件
+     */
+    public static List<ChunkData> chunk(File file, @Nullable MessageDigest fileDigest) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return chunk(in, fileDigest);
+        }
+    }
+
+    public static List<ChunkData> chunk(InputStream in, @Nullable MessageDigest fileDigest) throws IOException {
+        MessageDigest chunkDigest;
+        try {
+            chunkDigest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 algorithm not found", e);
+        }
+        List<ChunkData> chunks = new ArrayList<>();
+        byte[] buffer = new byte[1024 * 1024];
+        long offset = 0; // 当前块的起始位置
+        int size = 0; // 当前块已读取的字节数
+        long hash = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            if (fileDigest != null) {
+                fileDigest.update(buffer, 0, n);
+            }
+            int start = 0; // 缓冲区中属于当前块的起始位置
+            for (int i = 0; i < n; i++) {
+                size++;
+                if (size <= MIN_CHUNK) {
+                    // 最小块长度内不可能切分，跳过哈希计算
+                    continue;
+                }
+                hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                if ((hash & BOUNDARY_MASK) == 0 || size >= MAX_CHUNK) {
+                    chunkDigest.update(buffer, start, i + 1 - start);
+                    chunks.add(newChunk(offset, size, chunkDigest));
+                    offset += size;
+                    size = 0;
+                    hash = 0;
+                    start = i + 1;
+                }
+            }
+            chunkDigest.update(buffer, start, n - start);
+        }
+        if (size > 0) {
+            chunks.add(newChunk(offset, size, chunkDigest));
+        }
+        return chunks;
+    }
+
+    private static ChunkData newChunk(long offset, int size, MessageDigest digest) {
+        ChunkData chunk = new ChunkData();
+        chunk.offset = offset;
+        chunk.size = size;
+        chunk.md5 = MD5.toHex(digest.digest()); // digest() 同时重置摘要
+        return chunk;
+    }
+}
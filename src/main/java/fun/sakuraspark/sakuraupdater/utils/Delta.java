@@ -0,0 +1,237 @@
+package fun.sakuraspark.sakuraupdater.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 二进制差分，xdelta 风格的块匹配算法
+ * <p>
+ * 生成：把旧文件按固定大小分块建立滚动哈希索引，在新文件上滑动窗口查找相同的块，
+ * 命中后向前后扩展成尽量长的复制区间，其余部分作为新增数据。
+ * jar 等 zip 文件中未改动的条目字节相同、只是位置移动，能被整段复制。
+ * </p>
+ * <p>
+ * 补丁格式（整体 gzip 压缩）：int 魔数 + byte 版本 + long 新文件长度，之后是若干指令，
+ * 'C' + long 旧文件偏移 + int 长度 表示复制，'A' + int 长度 + 内容 表示新增，'E' 表示结束。
+ * </p>
+ */
+public class Delta {
+    // 小于该大小的文件直接下载即可，服务端不生成补丁，客户端也不请求补丁
+    public static final long MIN_SIZE = 256 * 1024;
+    private static final int MAGIC = 0x53554450; // "SUDP"
+    private static final byte VERSION = 1;
+    private static final byte OP_COPY = 'C';
+    private static final byte OP_ADD = 'A';
+    private static final byte OP_END = 'E';
+    // 匹配块大小，越小越容易匹配但索引越大
+    private static final int BLOCK_SIZE = 128;
+    // 单条新增指令的最大长度，应用补丁时据此分配缓冲区
+    private static final int MAX_ADD = 64 * 1024;
+
+    private Delta() {
+        // 工具类，禁止实例化
+    }
+
+    /**
+     * 生成从 source 到 target 的补丁
+     */
+    public static void diff(byte[] source, byte[] target, OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out, 64 * 1024)));
+        dos.writeInt(MAGIC);
+        dos.writeByte(VERSION);
+        dos.writeLong(target.length);
+
+        BlockIndex index = new BlockIndex(source);
+        int n = target.length;
+        int pos = 0;
+        int literalStart = 0;
+        int hash = n >= BLOCK_SIZE ? hash(target, 0) : 0;
+        while (pos + BLOCK_SIZE <= n) {
+            int offset = index.find(hash, target, pos);
+            if (offset >= 0) {
+                // 向前扩展到尚未输出的新增数据中
+                int back = 0;
+                while (back < pos - literalStart && offset - back > 0
+                        && source[offset - back - 1] == target[pos - back - 1]) {
+                    back++;
+                }
+                // 向后扩展
+                int length = BLOCK_SIZE;
+                while (pos + length < n && offset + length < source.length
+                        && source[offset + length] == target[pos + length]) {
+                    length++;
+                }
+                writeAdd(dos, target, literalStart, pos - back - literalStart);
+                dos.writeByte(OP_COPY);
+                dos.writeLong(offset - back);
+                dos.writeInt(length + back);
+                pos += length;
+                literalStart = pos;
+                if (pos + BLOCK_SIZE <= n) {
+                    hash = hash(target, pos);
+                }
+            } else {
+                if (pos + BLOCK_SIZE < n) {
+                    hash = roll(hash, target[pos], target[pos + BLOCK_SIZE]);
+                }
+                pos++;
+            }
+        }
+        writeAdd(dos, target, literalStart, n - literalStart);
+        dos.writeByte(OP_END);
+        dos.close();
+    }
+
+    /**
+     * 在 source 上应用补丁，结果写入 out
+     * @return 生成的文件长度
+     */
+    public static long patch(File source, InputStream patch, OutputStream out) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(source, "r");
+             DataInputStream in = new DataInputStream(
+                     new BufferedInputStream(new GZIPInputStream(patch, 64 * 1024), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Not a patch file or unsupported patch version");
+            }
+            long expected = in.readLong();
+            long sourceLength = raf.length();
+            byte[] buffer = new byte[MAX_ADD];
+            long written = 0;
+            while (true) {
+                byte op = in.readByte();
+                if (op == OP_END) {
+                    break;
+                } else if (op == OP_COPY) {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    if (offset < 0 || length < 0 || offset + length > sourceLength) {
+                        throw new IOException("Patch copies outside of the source file");
+                    }
+                    raf.seek(offset);
+                    while (length > 0) {
+                        int n = Math.min(length, buffer.length);
+                        raf.readFully(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        length -= n;
+                        written += n;
+                    }
+                } else if (op == OP_ADD) {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_ADD) {
+                        throw new IOException("Invalid patch add length: " + length);
+                    }
+                    in.readFully(buffer, 0, length);
+                    out.write(buffer, 0, length);
+                    written += length;
+                } else {
+                    throw new IOException("Unknown patch op: " + op);
+                }
+            }
+            if (written != expected) {
+                throw new EOFException("Patch produced " + written + " bytes, expected " + expected);
+            }
+            return written;
+        }
+    }
+
+    private static void writeAdd(DataOutputStream dos, byte[] data, int start, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, MAX_ADD);
+            dos.writeByte(OP_ADD);
+            dos.writeInt(n);
+            dos.write(data, start, n);
+            start += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * rsync 风格的弱滚动哈希，低 16 位为字节和，高 16 位为加权和
+     */
+    private static int hash(byte[] data, int start) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            int x = data[start + i] & 0xff;
+            a += x;
+            b += (BLOCK_SIZE - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * 窗口右移一个字节
+     */
+    private static int roll(int hash, byte out, byte in) {
+        int a = hash & 0xffff;
+        int b = hash >>> 16;
+        a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+        b = (b - BLOCK_SIZE * (out & 0xff) + a) & 0xffff;
+        return a | (b << 16);
+    }
+
+    /**
+     * 旧文件对齐块的哈希索引，开放寻址，同一哈希保留第一个块
+     */
+    private static final class BlockIndex {
+        private final byte[] source;
+        private final int[] hashes;
+        private final int[] offsets;
+        private final int mask;
+
+        private BlockIndex(byte[] source) {
+            this.source = source;
+            int blocks = source.length / BLOCK_SIZE;
+            int capacity = Integer.highestOneBit(Math.max(blocks * 2, 16) - 1) << 1;
+            hashes = new int[capacity];
+            offsets = new int[capacity];
+            Arrays.fill(offsets, -1);
+            mask = capacity - 1;
+            for (int i = 0; i < blocks; i++) {
+                int offset = i * BLOCK_SIZE;
+                int h = hash(source, offset);
+                int slot = mix(h) & mask;
+                while (offsets[slot] >= 0 && hashes[slot] != h) {
+                    slot = (slot + 1) & mask;
+                }
+                if (offsets[slot] < 0) {
+                    hashes[slot] = h;
+                    offsets[slot] = offset;
+                }
+            }
+        }
+
+        /**
+         * 查找与 target[pos, pos + BLOCK_SIZE) 内容相同的块
+         * @return 旧文件中的偏移，找不到返回 -1
+         */
+        private int find(int h, byte[] target, int pos) {
+            int slot = mix(h) & mask;
+            while (offsets[slot] >= 0) {
+                if (hashes[slot] == h) {
+                    int offset = offsets[slot];
+                    return Arrays.equals(source, offset, offset + BLOCK_SIZE, target, pos, pos + BLOCK_SIZE)
+                            ? offset : -1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private static int mix(int h) {
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -5,17 +5,21 @@ public class MD5 {
     public static String calculateMD5(byte[] data) {
         try {
             java.security.MessageDigest md = java.security.MessageDigest.getInstance("MD5");
-            byte[] digest = md.digest(data);
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
+            return toHex(md.digest(data));
         } catch (java.security.NoSuchAlgorithmException e) {
             throw new RuntimeException("MD5 algorithm not found", e);
         }
     }
 
+    // 将摘要转换为小写十六进制字符串
+    public static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
     // MD5计算方法，接受字符串输入
     public static String calculateStringMD5(String input) {
         return calculateMD5(input.getBytes());
@@ -32,12 +36,7 @@ public class MD5 {
                 md.update(buffer, 0, bytesRead);
             }
             fis.close();
-            byte[] digest = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
+            return toHex(md.digest());
         } catch (java.io.IOException | java.security.NoSuchAlgorithmException e) {
             throw new RuntimeException("Error calculating MD5 for file: " + file.getPath(), e);
         }
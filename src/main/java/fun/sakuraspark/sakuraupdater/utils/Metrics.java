@@ -0,0 +1,246 @@
+package fun.sakuraspark.sakuraupdater.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 运行指标，以 Prometheus 文本格式输出
+ * <p>
+ * 计数器和直方图都基于 {@link LongAdder}，记录时不加锁，高并发下也不会成为瓶颈；
+ * 汇总只在抓取时进行。标签以 key, value 交替的形式传入。
+ * </p>
+ */
+public final class Metrics {
+    // 直方图分桶上限（秒）
+    private static final double[] BUCKETS = {
+            0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    // 按名称排序，输出稳定
+    private static final Map<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+        // 工具类，禁止实例化
+    }
+
+    /**
+     * 获取或创建计数器
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").get(labels, Counter::new);
+    }
+
+    /**
+     * 获取或创建耗时直方图，单位为秒
+     */
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "histogram").get(labels, Histogram::new);
+    }
+
+    /**
+     * 注册取值函数作为仪表，同名同标签的仪表会被替换
+     */
+    public static void gauge(String name, String help, LongSupplier supplier, String... labels) {
+        family(name, help, "gauge").metrics.put(labelString(labels), new Gauge(supplier));
+    }
+
+    /**
+     * 移除仪表，取值函数引用的对象销毁后调用
+     */
+    public static void removeGauge(String name, String... labels) {
+        Family family = FAMILIES.get(name);
+        if (family != null) {
+            family.metrics.remove(labelString(labels));
+        }
+    }
+
+    /**
+     * 以 Prometheus 文本格式（0.0.4）输出所有指标
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Family family : FAMILIES.values()) {
+            if (family.metrics.isEmpty()) {
+                continue;
+            }
+            sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            new ConcurrentSkipListMap<>(family.metrics)
+                    .forEach((labels, metric) -> metric.write(sb, family.name, labels));
+        }
+        return sb.toString();
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = FAMILIES.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        }
+        return family;
+    }
+
+    /**
+     * 把标签转成 {@code k="v",k2="v2"} 形式，同时作为指标的键
+     */
+    private static String labelString(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be key, value pairs");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                switch (c) {
+                    case '\\' -> sb.append("\\\\");
+                    case '"' -> sb.append("\\\"");
+                    case '\n' -> sb.append("\\n");
+                    default -> sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private static void appendSample(StringBuilder sb, String name, String labels, String value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String joinLabels(String labels, String extra) {
+        return labels.isEmpty() ? extra : labels + "," + extra;
+    }
+
+    private interface Metric {
+        void write(StringBuilder sb, String name, String labels);
+    }
+
+    /**
+     * 同名指标的集合
+     */
+    private static final class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        private Metric get(String[] labels, Supplier<Metric> factory) {
+            String key = labelString(labels);
+            // 已存在时直接读取，不进入 computeIfAbsent 的加锁路径
+            Metric metric = metrics.get(key);
+            return metric != null ? metric : metrics.computeIfAbsent(key, k -> factory.get());
+        }
+    }
+
+    /**
+     * 单调递增的计数器
+     */
+    public static final class Counter implements Metric {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void write(StringBuilder sb, String name, String labels) {
+            appendSample(sb, name, labels, Long.toString(value.sum()));
+        }
+    }
+
+    /**
+     * 耗时直方图，每个分桶一个 {@link LongAdder}，抓取时再累加成累计分布
+     */
+    public static final class Histogram implements Metric {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * 记录从 startNanos（{@link System#nanoTime()}）到现在的耗时
+         */
+        public void observeSince(long startNanos) {
+            observeNanos(System.nanoTime() - startNanos);
+        }
+
+        public void observeNanos(long nanos) {
+            int i = 0;
+            while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        @Override
+        public void write(StringBuilder sb, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += buckets[i].sum();
+                appendSample(sb, name + "_bucket", joinLabels(labels, "le=\"" + BUCKETS[i] + "\""),
+                        Long.toString(cumulative));
+            }
+            cumulative += buckets[BUCKETS.length].sum();
+            appendSample(sb, name + "_bucket", joinLabels(labels, "le=\"+Inf\""), Long.toString(cumulative));
+            appendSample(sb, name + "_sum", labels, Double.toString(sumNanos.sum() / 1e9));
+            appendSample(sb, name + "_count", labels, Long.toString(count.sum()));
+        }
+    }
+
+    /**
+     * 抓取时读取当前值的仪表
+     */
+    private static final class Gauge implements Metric {
+        private final LongSupplier supplier;
+
+        private Gauge(LongSupplier supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public void write(StringBuilder sb, String name, String labels) {
+            appendSample(sb, name, labels, Long.toString(supplier.getAsLong()));
+        }
+    }
+}
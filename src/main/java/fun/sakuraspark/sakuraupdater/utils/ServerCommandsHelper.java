@@ -5,21 +5,31 @@ import fun.sakuraspark.sakuraupdater.config.IGetSyncDirs;
 import fun.sakuraspark.sakuraupdater.config.DataConfig.FileData;
 import fun.sakuraspark.sakuraupdater.config.DataConfig.PathData;
 import fun.sakuraspark.sakuraupdater.config.ServerConfig;
+import fun.sakuraspark.sakuraupdater.network.ChangeSets;
+import fun.sakuraspark.sakuraupdater.network.FileServer;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
 /**
  * 封装服务端命令的业务逻辑，与命令框架解耦。
  * context 参数获取和消息发送不在此处处理。
  */
 public class ServerCommandsHelper {
+    private static final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(ServerCommandsHelper.class);
+
     /**
      * 命令执行结果
      */
@@ -108,14 +118,18 @@ public class ServerCommandsHelper {
     }
 
     // ---- commit ----
-    public static CommandResult commitData(String version, String description) {
+    /**
+     * @param fileServer 为新版本生成差分补丁的文件服务器，未启动时为 null，此时不生成补丁，客户端完整下载
+     */
+    public static CommandResult commitData(String version, String description, @Nullable FileServer fileServer) {
         try{
-            return commitData(version, description, getPathDataList());
+            return commitData(version, description, getPathDataList(), fileServer);
         } catch (Exception e) {
             return CommandResult.failure("Failed to commit data: " + e.getMessage());
         }
     }
-    public static CommandResult commitData(String version, String description, List<PathData> pathData) {
+    public static CommandResult commitData(String version, String description, List<PathData> pathData,
+            @Nullable FileServer fileServer) {
         String timestamp = LocalDateTime.now()
                 .format(DateTimeFormatter.ofPattern("yyyy-MM-dd_HH:mm:ss"));
 
@@ -129,12 +143,26 @@ public class ServerCommandsHelper {
             }
         }
 
+        DataConfig.Data previous = DataConfig.getLastData();
         if (!DataConfig.addData(version, timestamp,
                 fileContent != null ? fileContent : description.replace("\\n", "\n"),
                 pathData)) {
             return CommandResult.failure("Failed to add commit: Version already exists or invalid data.");
         }
-        return CommandResult.success("SakuraUpdater server commit added!");
+        // 保存相对上一版本的变化，失败时服务端在第一次请求时重新计算
+        try {
+            ChangeSets.record(previous, version, pathData);
+        } catch (Exception e) {
+            LOGGER.error("Failed to record changes from the previous version", e);
+        }
+        // 在后台为内容变化的文件生成相对上一版本的补丁，失败不影响提交，客户端会回退到完整下载
+        if (fileServer == null) {
+            return CommandResult.success(
+                    "SakuraUpdater server commit added! File server is not running, no delta patches generated.");
+        }
+        fileServer.generatePatches(previous, pathData);
+        return CommandResult.success(
+                "SakuraUpdater server commit added! Delta patches are being generated in the background.");
     }
 
     // ---- 扫描同步目录，生成 PathData 列表 ----
@@ -157,7 +185,21 @@ public class ServerCommandsHelper {
                     FileData fileData = new FileData();
                     fileData.sourcePath = file.toString().replace(File.separator, "/");
                     fileData.targetPath = file.toString().replace(source, targetPath).replace(File.separator, "/");
-                    fileData.md5 = MD5.calculateMD5(file);
+                    fileData.size = file.length();
+                    if (fileData.size >= Chunker.MIN_FILE_SIZE) {
+                        // 大文件切块，客户端只需下载内容变化的块；切块时顺带计算整个文件的MD5
+                        try {
+                            MessageDigest digest = MessageDigest.getInstance("MD5");
+                            fileData.chunks = Chunker.chunk(file, digest);
+                            fileData.md5 = MD5.toHex(digest.digest());
+                        } catch (IOException | NoSuchAlgorithmException e) {
+                            LOGGER.warn("Failed to chunk file {}", file, e);
+                            fileData.chunks = null;
+                            fileData.md5 = MD5.calculateMD5(file);
+                        }
+                    } else {
+                        fileData.md5 = MD5.calculateMD5(file);
+                    }
                     data.files.add(fileData);
                 });
             }
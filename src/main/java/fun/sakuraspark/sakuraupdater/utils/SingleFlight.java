@@ -0,0 +1,68 @@
+package fun.sakuraspark.sakuraupdater.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 合并相同键的并发计算
+ * <p>
+ * 第一个请求执行计算，计算期间到达的相同键的请求等待并共享同一个结果，而不是各自重复查询数据库或读取磁盘。
+ * 计算结束后立即移除，之后的请求会重新计算，因此结果需要由调用方自行缓存。
+ * 被合并的请求数记录在 sakuraupdater_singleflight_coalesced_total 指标中。
+ * </p>
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+    private final Metrics.Counter coalesced;
+
+    /**
+     * @param resource 资源名称，作为指标的标签
+     */
+    public SingleFlight(String resource) {
+        this.coalesced = Metrics.counter("sakuraupdater_singleflight_coalesced_total",
+                "Requests that waited for an identical in-flight computation instead of repeating it.",
+                "resource", resource);
+    }
+
+    /**
+     * 执行计算，已有相同键的计算在进行时等待它的结果
+     * <p>计算抛出的异常会同样抛给所有等待的请求</p>
+     */
+    public V execute(K key, Supplier<V> loader) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = calls.putIfAbsent(key, mine);
+        if (existing != null) {
+            coalesced.inc();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                if (e.getCause() instanceof Error cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
+        try {
+            V value = loader.get();
+            mine.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, mine);
+        }
+    }
+
+    /**
+     * 被合并的请求总数
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+}